@@ -3,10 +3,6 @@ package rTree;
 import spatialIndex.Region;
 import spatialIndex.SpatialIndex;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Stack;
 
 public class Index extends Node{
     public Index(RTree pTree, int id, int level)
@@ -14,11 +10,11 @@ public class Index extends Node{
         super(pTree, id, level, pTree.indexCapacity);
     }
 
-    protected Node chooseSubtree(Region mbr, int level, Stack pathBuffer)
+    protected Node chooseSubtree(Region mbr, int level, IntStack pathBuffer)
     {
         if (this.level == level) return this;
 
-        pathBuffer.push(new Integer(identifier));
+        pathBuffer.push(identifier);
 
         int child = 0;
 
@@ -49,13 +45,13 @@ public class Index extends Node{
         return ret;
     }
 
-    protected Leaf findLeaf(Region mbr, int id, Stack pathBuffer)
+    protected Leaf findLeaf(Region mbr, int id, IntStack pathBuffer)
     {
-        pathBuffer.push(new Integer(identifier));
+        pathBuffer.push(identifier);
 
         for (int cChild = 0; cChild < children; cChild++)
         {
-            if (pMBR[cChild].contains(mbr))
+            if (childContains(cChild, mbr))
             {
                 Node n = pTree.readNode(pIdentifier[cChild]);
                 Leaf l = n.findLeaf(mbr, id, pathBuffer);
@@ -72,7 +68,9 @@ public class Index extends Node{
     {
         pTree.stats.splits++;
 
-        ArrayList g1 = new ArrayList(), g2 = new ArrayList();
+        IntStack g1 = pTree.group1, g2 = pTree.group2;
+        g1.clear();
+        g2.clear();
 
         switch (pTree.treeVariant)
         {
@@ -94,14 +92,12 @@ public class Index extends Node{
 
         for (cIndex = 0; cIndex < g1.size(); cIndex++)
         {
-            int i = ((Integer) g1.get(cIndex)).intValue();
-            left.insertEntry(null, pMBR[i], pIdentifier[i]);
+            left.copyEntry(this, g1.get(cIndex));
         }
 
         for (cIndex = 0; cIndex < g2.size(); cIndex++)
         {
-            int i = ((Integer) g2.get(cIndex)).intValue();
-            right.insertEntry(null, pMBR[i], pIdentifier[i]);
+            right.copyEntry(this, g2.get(cIndex));
         }
 
         Node[] ret = new Node[2];
@@ -117,10 +113,8 @@ public class Index extends Node{
 
         for (int cChild = 0; cChild < children; cChild++)
         {
-            Region t = pMBR[cChild].combinedRegion(r);
-
-            double a = pMBR[cChild].getArea();
-            double enl = t.getArea() - a;
+            double a = getChildArea(cChild);
+            double enl = getChildCombinedArea(cChild, r) - a;
 
             if (enl < area)
             {
@@ -129,7 +123,7 @@ public class Index extends Node{
             }
             else if (enl == area)
             {
-                if (a < pMBR[best].getArea()) best = cChild;
+                if (a < getChildArea(best)) best = cChild;
             }
         }
 
@@ -138,7 +132,14 @@ public class Index extends Node{
 
     protected int findLeastOverlap(Region r)
     {
-        OverlapEntry[] entries = new OverlapEntry[children];
+        // per entry the enlargement, the original area and the combined region, kept in the scratch arrays of the tree.
+        int[] entries = pTree.sortOrder;
+        double[] enlargement = pTree.sortKeys;
+        double[] oa = pTree.scratchAreas;
+        double[] combinedLows = pTree.scratchLows, combinedHighs = pTree.scratchHighs;
+        Region combined = pTree.scratchCombined;
+        Region original = pTree.scratchOriginal;
+        int dim = pTree.dimension;
 
         double leastOverlap = Double.POSITIVE_INFINITY;
         double me = Double.POSITIVE_INFINITY;
@@ -147,22 +148,26 @@ public class Index extends Node{
         // find combined region and enlargement of every entry and store it.
         for (int cChild = 0; cChild < children; cChild++)
         {
-            OverlapEntry e = new OverlapEntry();
+            entries[cChild] = cChild;
+
+            double ca = 1.0;
+            for (int cDim = 0; cDim < dim; cDim++)
+            {
+                int i = cChild * dim + cDim;
+                combinedLows[i] = Math.min(pLows[i], r.pLow[cDim]);
+                combinedHighs[i] = Math.max(pHighs[i], r.pHigh[cDim]);
+                ca *= combinedHighs[i] - combinedLows[i];
+            }
 
-            e.id = cChild;
-            e.original = pMBR[cChild];
-            e.combined = pMBR[cChild].combinedRegion(r);
-            e.oa = e.original.getArea();
-            e.ca = e.combined.getArea();
-            e.enlargement = e.ca - e.oa;
-            entries[cChild] = e;
+            oa[cChild] = getChildArea(cChild);
+            enlargement[cChild] = ca - oa[cChild];
 
-            if (e.enlargement < me)
+            if (enlargement[cChild] < me)
             {
-                me = e.enlargement;
+                me = enlargement[cChild];
                 best = cChild;
             }
-            else if (e.enlargement == me && e.oa < entries[best].oa)
+            else if (enlargement[cChild] == me && oa[cChild] < oa[best])
             {
                 best = cChild;
             }
@@ -175,7 +180,7 @@ public class Index extends Node{
             if (children > pTree.nearMinimumOverlapFactor)
             {
                 // sort entries in increasing order of enlargement.
-                Arrays.sort(entries, new OverlapEntryComparator());
+                sortEntries(entries, children, enlargement, 1, 0);
                 cIterations = pTree.nearMinimumOverlapFactor;
             }
             else
@@ -187,14 +192,17 @@ public class Index extends Node{
             for (int cIndex = 0; cIndex < cIterations; cIndex++)
             {
                 double dif = 0.0;
-                OverlapEntry e = entries[cIndex];
+                int e = entries[cIndex];
+                System.arraycopy(combinedLows, e * dim, combined.pLow, 0, dim);
+                System.arraycopy(combinedHighs, e * dim, combined.pHigh, 0, dim);
+                getChildMBR(e, original);
 
                 for (int cChild = 0; cChild < children; cChild++)
                 {
-                    if (e.id != cChild)
+                    if (e != cChild)
                     {
-                        double f = e.combined.getIntersectingArea(pMBR[cChild]);
-                        if (f != 0.0) dif +=  f - e.original.getIntersectingArea(pMBR[cChild]);
+                        double f = getChildIntersectingArea(cChild, combined);
+                        if (f != 0.0) dif +=  f - getChildIntersectingArea(cChild, original);
                     }
                 } // for (cChild)
 
@@ -205,24 +213,26 @@ public class Index extends Node{
                 }
                 else if (dif == leastOverlap)
                 {
-                    if (e.enlargement == entries[best].enlargement)
+                    int b = entries[best];
+
+                    if (enlargement[e] == enlargement[b])
                     {
                         // keep the one with least area.
-                        if (e.original.getArea() < entries[best].original.getArea()) best = cIndex;
+                        if (oa[e] < oa[b]) best = cIndex;
                     }
                     else
                     {
                         // keep the one with least enlargement.
-                        if (e.enlargement < entries[best].enlargement) best = cIndex;
+                        if (enlargement[e] < enlargement[b]) best = cIndex;
                     }
                 }
             } // for (cIndex)
         }
 
-        return entries[best].id;
+        return entries[best];
     }
 
-    protected void adjustTree(Node n, Stack pathBuffer)
+    protected void adjustTree(Node n, IntStack pathBuffer)
     {
         pTree.stats.adjustments++;
 
@@ -237,36 +247,26 @@ public class Index extends Node{
         //   1. the NEW child MBR is not contained.
         //   2. the OLD child MBR is touching.
         boolean b = nodeMBR.contains(n.nodeMBR);
-        boolean recalc = (! b) ? true : nodeMBR.touches(pMBR[child]);
+        boolean recalc = (! b) ? true : childTouches(child, nodeMBR);
 
-        pMBR[child] = (Region) n.nodeMBR.clone();
+        setChildMBR(child, n.nodeMBR);
 
         if (recalc)
         {
-            for (int cDim = 0; cDim < pTree.dimension; cDim++)
-            {
-                nodeMBR.pLow[cDim] = Double.POSITIVE_INFINITY;
-                nodeMBR.pHigh[cDim] = Double.NEGATIVE_INFINITY;
-
-                for (int cChild = 0; cChild < children; cChild++)
-                {
-                    nodeMBR.pLow[cDim] = Math.min(nodeMBR.pLow[cDim], pMBR[cChild].pLow[cDim]);
-                    nodeMBR.pHigh[cDim] = Math.max(nodeMBR.pHigh[cDim], pMBR[cChild].pHigh[cDim]);
-                }
-            }
+            recalculateMBR();
         }
 
         pTree.writeNode(this);
 
         if (recalc && ! pathBuffer.empty())
         {
-            int cParent = ((Integer) pathBuffer.pop()).intValue();
+            int cParent = pathBuffer.pop();
             Index p = (Index) pTree.readNode(cParent);
             p.adjustTree(this, pathBuffer);
         }
     }
 
-    protected void adjustTree(Node n1, Node n2, Stack pathBuffer, boolean[] overflowTable)
+    protected void adjustTree(Node n1, Node n2, IntStack pathBuffer, boolean[] overflowTable)
     {
         pTree.stats.adjustments++;
 
@@ -281,62 +281,28 @@ public class Index extends Node{
         //   1. the NEW child MBR is not contained.
         //   2. the OLD child MBR is touching.
         boolean b = nodeMBR.contains(n1.nodeMBR);
-        boolean recalc = (! b) ? true : nodeMBR.touches(pMBR[child]);
+        boolean recalc = (! b) ? true : childTouches(child, nodeMBR);
 
-        pMBR[child] = (Region) n1.nodeMBR.clone();
+        setChildMBR(child, n1.nodeMBR);
 
         if (recalc)
         {
-            for (int cDim = 0; cDim < pTree.dimension; cDim++)
-            {
-                nodeMBR.pLow[cDim] = Double.POSITIVE_INFINITY;
-                nodeMBR.pHigh[cDim] = Double.NEGATIVE_INFINITY;
-
-                for (int cChild = 0; cChild < children; cChild++)
-                {
-                    nodeMBR.pLow[cDim] = Math.min(nodeMBR.pLow[cDim], pMBR[cChild].pLow[cDim]);
-                    nodeMBR.pHigh[cDim] = Math.max(nodeMBR.pHigh[cDim], pMBR[cChild].pHigh[cDim]);
-                }
-            }
+            recalculateMBR();
         }
 
         // No write necessary here. insertData will write the node if needed.
         //m_pTree.writeNode(this);
 
-        boolean adjusted = insertData(null, (Region) n2.nodeMBR.clone(), n2.identifier, pathBuffer, overflowTable);
+        boolean adjusted = insertData(null, -1, n2.nodeMBR, n2.identifier, pathBuffer, overflowTable);
 
         // if n2 is contained in the node and there was no split or reinsert,
         // we need to adjust only if recalculation took place.
         // In all other cases insertData above took care of adjustment.
         if (! adjusted && recalc && ! pathBuffer.empty())
         {
-            int cParent = ((Integer) pathBuffer.pop()).intValue();
+            int cParent = pathBuffer.pop();
             Index p = (Index) pTree.readNode(cParent);
             p.adjustTree(this, pathBuffer);
         }
     }
-
-    class OverlapEntry
-    {
-        int id;
-        double enlargement;
-        Region original;
-        Region combined;
-        double oa;
-        double ca;
-    }
-
-    class OverlapEntryComparator implements Comparator
-    {
-        public int compare(Object o1, Object o2)
-        {
-            OverlapEntry e1 = (OverlapEntry) o1;
-            OverlapEntry e2 = (OverlapEntry) o2;
-
-            if (e1.enlargement < e2.enlargement) return -1;
-            if (e1.enlargement > e2.enlargement) return 1;
-            return 0;
-        }
-    }
-
 }
@@ -0,0 +1,66 @@
+package rTree;
+
+import java.util.EmptyStackException;
+
+/**
+ * 存放int的栈, 用于插入时记录路径与分裂时的分组, 不把页号装箱成Integer
+ */
+class IntStack {
+    private int[] elements;
+    private int size = 0;
+
+    IntStack()
+    {
+        this(16);
+    }
+
+    IntStack(int capacity)
+    {
+        this.elements = new int[Math.max(capacity, 1)];
+    }
+
+    void push(int value)
+    {
+        if (this.size == this.elements.length)
+        {
+            int[] e = new int[2 * this.elements.length];
+            System.arraycopy(this.elements, 0, e, 0, this.size);
+            this.elements = e;
+        }
+
+        this.elements[this.size++] = value;
+    }
+
+    int pop()
+    {
+        if (this.size == 0) throw new EmptyStackException();
+        return this.elements[--this.size];
+    }
+
+    int peek()
+    {
+        if (this.size == 0) throw new EmptyStackException();
+        return this.elements[this.size - 1];
+    }
+
+    int get(int index)
+    {
+        if (index < 0 || index >= this.size) throw new IndexOutOfBoundsException("" + index);
+        return this.elements[index];
+    }
+
+    int size()
+    {
+        return this.size;
+    }
+
+    boolean empty()
+    {
+        return this.size == 0;
+    }
+
+    void clear()
+    {
+        this.size = 0;
+    }
+}
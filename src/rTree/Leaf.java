@@ -2,7 +2,6 @@ package rTree;
 
 import spatialIndex.Region;
 
-import java.util.ArrayList;
 import java.util.Stack;
 
 public class Leaf extends Node {
@@ -11,27 +10,30 @@ public class Leaf extends Node {
         super(pTree, id, 0, pTree.leafCapacity);
     }
 
-    protected Node chooseSubtree(Region mbr, int level, Stack pathBuffer)
+    protected Node chooseSubtree(Region mbr, int level, IntStack pathBuffer)
     {
         return this;
     }
 
-    protected Leaf findLeaf(Region mbr, int id, Stack pathBuffer)
+    protected Leaf findLeaf(Region mbr, int id, IntStack pathBuffer)
     {
         for(int cChild = 0; cChild < children; cChild++)
-            if(pIdentifier[cChild] == id && mbr.equals(pMBR[cChild]))
+            if(pIdentifier[cChild] == id && childEquals(cChild, mbr))
                 return this;
 
         return null;
     }
 
-    protected void deleteData(int id, Stack pathBuffer)
+    protected void deleteData(int id, IntStack pathBuffer)
     {
         int child;
         for(child = 0; child < children; child++)
             if(pIdentifier[child] == id)
                 break;
 
+        // the data of the deleted entry is not referenced anywhere else.
+        if (pBlob[child] >= 0) pTree.deletePayload(pBlob[child]);
+
         deleteEntry(child);
         pTree.writeNode(this);
         Stack toReinsert = new Stack();
@@ -46,7 +48,9 @@ public class Leaf extends Node {
                 for(int cLevel = 0; cLevel < pTree.stats.treeHeight; cLevel++)
                     overflowTable[cLevel] = false;
 
-                pTree.insertData_impl(n.pData[cChild], n.pMBR[cChild], n.pIdentifier[cChild], n.level, overflowTable);
+                // entries with their data in the payload storage manager keep it, only the page number moves.
+                byte[] data = (n.pBlob[cChild] >= 0) ? n.pData[cChild] : n.getData(cChild);
+                pTree.insertData_impl(data, n.pBlob[cChild], n.getChildMBR(cChild), n.pIdentifier[cChild], n.level, overflowTable);
                 n.pData[cChild] = null;
             }
         }
@@ -55,8 +59,10 @@ public class Leaf extends Node {
     protected Node[] split(byte pData[], Region mbr, int id)
     {
         pTree.stats.splits++;
-        ArrayList g1 = new ArrayList();
-        ArrayList g2 = new ArrayList();
+        IntStack g1 = pTree.group1;
+        IntStack g2 = pTree.group2;
+        g1.clear();
+        g2.clear();
         switch(pTree.treeVariant)
         {
             case 1: // '\001'
@@ -75,15 +81,15 @@ public class Leaf extends Node {
         Node right = new Leaf(pTree, -1);
         for(int cIndex = 0; cIndex < g1.size(); cIndex++)
         {
-            int i = ((Integer)g1.get(cIndex)).intValue();
-            left.insertEntry(this.pData[i], pMBR[i], pIdentifier[i]);
+            int i = g1.get(cIndex);
+            left.copyEntry(this, i);
             this.pData[i] = null;
         }
 
         for(int cIndex = 0; cIndex < g2.size(); cIndex++)
         {
-            int i = ((Integer)g2.get(cIndex)).intValue();
-            right.insertEntry(this.pData[i], pMBR[i], pIdentifier[i]);
+            int i = g2.get(cIndex);
+            right.copyEntry(this, i);
             this.pData[i] = null;
         }
 
@@ -98,7 +104,7 @@ public class Leaf extends Node {
         int length = pDataLength[id];
         byte data[] = new byte[length];
         for(int i = 0; i < data.length; i++)
-            data[i] = pData[id][i];
+            data[i] = getData(id)[i];
 
         String value = new String(data);
         return value;
@@ -3,6 +3,7 @@ package rTree;
 import spatialIndex.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public abstract class Node implements INode {
@@ -13,13 +14,17 @@ public abstract class Node implements INode {
     protected int capacity = -1;//节点容量
     protected Region nodeMBR = null;//该节点中数据的最小生成矩形
     protected byte[][] pData = null;//节点中的数据
-    protected Region[] pMBR = null;//该节点中所有的矩形
+    protected double[] pLows = null;//该节点中所有矩形的下界，按子节点依次存放，每个子节点占dimension个
+    protected double[] pHighs = null;//该节点中所有矩形的上界，布局与pLows相同
     protected int[] pIdentifier = null;//该节点中各数据对应的编号
     protected int[] pDataLength = null;//节点中各数据的长度
+    protected int[] pDataOffset = null;//尚未取出的数据在pPage中的位置
+    protected ByteBuffer pPage = null;//节点读入时的页面，数据在被访问时才从中取出
+    protected int[] pBlob = null;//数据在负载存储管理器中的页号，-1表示数据不在其中
     int totalDataLength = 0;//总数据长度
 
-    protected abstract Node chooseSubtree(Region mbr, int level, Stack pathBuffer);
-    protected abstract Leaf findLeaf(Region mbr, int id, Stack pathBuffer);
+    protected abstract Node chooseSubtree(Region mbr, int level, IntStack pathBuffer);
+    protected abstract Leaf findLeaf(Region mbr, int id, IntStack pathBuffer);
     protected abstract Node[] split(byte[] pData, Region mbr, int id);
 
     public int getIdentifier()
@@ -37,7 +42,12 @@ public abstract class Node implements INode {
         return children;
     }
 
-    public Region[] getpMBR(){return pMBR;}
+    public Region[] getpMBR()
+    {
+        Region[] ret = new Region[children];
+        for (int cChild = 0; cChild < children; cChild++) ret[cChild] = getChildMBR(cChild);
+        return ret;
+    }
 
     public int getChildIdentifier(int index) throws IndexOutOfBoundsException
     {
@@ -50,7 +60,7 @@ public abstract class Node implements INode {
     {
         if (index < 0 || index >= children) throw new IndexOutOfBoundsException("" + index);
 
-        return new Region(pMBR[index]);
+        return getChildMBR(index);
     }
 
     public int getLevel()
@@ -79,7 +89,11 @@ public abstract class Node implements INode {
 
         this.pDataLength = new int[this.capacity + 1];
         this.pData = new byte[this.capacity + 1][];
-        this.pMBR = new Region[this.capacity + 1];
+        this.pDataOffset = new int[this.capacity + 1];
+        this.pBlob = new int[this.capacity + 1];
+        Arrays.fill(this.pBlob, -1);
+        this.pLows = new double[(this.capacity + 1) * pTree.dimension];
+        this.pHighs = new double[(this.capacity + 1) * pTree.dimension];
         this.pIdentifier = new int[this.capacity + 1];
     }
 
@@ -91,12 +105,28 @@ public abstract class Node implements INode {
      * @throws IllegalStateException
      */
     protected void insertEntry(byte[] pData, Region mbr, int id) throws IllegalStateException
+    {
+        insertEntry(pData, -1, mbr, id);
+    }
+
+    /**
+     * 向节点插入新的实体，数据已经在负载存储管理器中时blob为其页号，否则为-1
+     * @param pData
+     * @param blob
+     * @param mbr
+     * @param id
+     * @throws IllegalStateException
+     */
+    protected void insertEntry(byte[] pData, int blob, Region mbr, int id) throws IllegalStateException
     {
         if (this.children >= this.capacity) throw new IllegalStateException("children >= nodeCapacity");
 
+        loadData();
+
         this.pDataLength[this.children] = (pData != null) ? pData.length : 0;
         this.pData[this.children] = pData;
-        this.pMBR[this.children] = mbr;
+        this.pBlob[this.children] = blob;
+        setChildMBR(this.children, mbr);
         this.pIdentifier[this.children] = id;
 
         this.totalDataLength += this.pDataLength[this.children];
@@ -105,6 +135,35 @@ public abstract class Node implements INode {
         Region.combinedRegion(this.nodeMBR, mbr);
     }
 
+    /**
+     * 把另一个节点中指定下标的实体复制到本节点, 不生成中间的Region对象
+     * @param n
+     * @param index
+     * @throws IllegalStateException
+     */
+    protected void copyEntry(Node n, int index) throws IllegalStateException
+    {
+        if (this.children >= this.capacity) throw new IllegalStateException("children >= nodeCapacity");
+
+        int dim = this.pTree.dimension;
+
+        this.pDataLength[this.children] = n.pDataLength[index];
+        this.pData[this.children] = (n.pBlob[index] >= 0) ? n.pData[index] : n.getData(index);
+        this.pBlob[this.children] = n.pBlob[index];
+        System.arraycopy(n.pLows, index * dim, this.pLows, this.children * dim, dim);
+        System.arraycopy(n.pHighs, index * dim, this.pHighs, this.children * dim, dim);
+        this.pIdentifier[this.children] = n.pIdentifier[index];
+
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            this.nodeMBR.pLow[cDim] = Math.min(this.nodeMBR.pLow[cDim], this.pLows[this.children * dim + cDim]);
+            this.nodeMBR.pHigh[cDim] = Math.max(this.nodeMBR.pHigh[cDim], this.pHighs[this.children * dim + cDim]);
+        }
+
+        this.totalDataLength += this.pDataLength[this.children];
+        this.children++;
+    }
+
     /**
      * 从节点中删除指定下标的实体，把最后的数据提到该位置，同时调整MBR
      * @param index
@@ -114,7 +173,9 @@ public abstract class Node implements INode {
     {
         if (index < 0 || index >= this.children) throw new IndexOutOfBoundsException("" + index);
 
-        boolean touches = this.nodeMBR.touches(this.pMBR[index]);
+        loadData();
+
+        boolean touches = childTouches(index, this.nodeMBR);
 
         this.totalDataLength -= this.pDataLength[index];
         this.pData[index] = null;
@@ -124,8 +185,9 @@ public abstract class Node implements INode {
             this.pDataLength[index] = this.pDataLength[this.children - 1];
             this.pData[index] = this.pData[this.children - 1];
             this.pData[this.children - 1] = null;
-            this.pMBR[index] = this.pMBR[this.children - 1];
-            this.pMBR[this.children - 1] = null;
+            this.pBlob[index] = this.pBlob[this.children - 1];
+            System.arraycopy(this.pLows, (this.children - 1) * this.pTree.dimension, this.pLows, index * this.pTree.dimension, this.pTree.dimension);
+            System.arraycopy(this.pHighs, (this.children - 1) * this.pTree.dimension, this.pHighs, index * this.pTree.dimension, this.pTree.dimension);
             this.pIdentifier[index] = this.pIdentifier[this.children - 1];
         }
 
@@ -137,34 +199,307 @@ public abstract class Node implements INode {
         }
         else if (touches)
         {
-            for (int cDim = 0; cDim < this.pTree.dimension; cDim++)
+            recalculateMBR();
+        }
+    }
+
+    /**
+     * 取出指定下标实体的数据，第一次访问时才从页面中复制
+     * @param index
+     * @return
+     */
+    protected synchronized byte[] getData(int index)
+    {
+        if (this.pData[index] == null && this.pBlob[index] >= 0)
+        {
+            if (this.pTree.payloadStorageManager == null) throw new IllegalStateException("Property PayloadStorageManager is needed to read the data of this tree.");
+            this.pData[index] = this.pTree.payloadStorageManager.loadByteArray(this.pBlob[index]);
+        }
+        else if (this.pData[index] == null && this.pDataLength[index] > 0 && this.pPage != null)
+        {
+            byte[] data = new byte[this.pDataLength[index]];
+            ByteBuffer b = this.pPage.duplicate();
+            b.position(this.pDataOffset[index]);
+            b.get(data);
+            this.pData[index] = data;
+        }
+
+        return this.pData[index];
+    }
+
+    /**
+     * 返回指定下标实体数据的只读视图. 数据还在页面中时直接指向页面, 不复制
+     * @param index
+     * @return 没有数据时为null
+     */
+    protected synchronized ByteBuffer getDataView(int index)
+    {
+        if (this.pData[index] == null && this.pBlob[index] < 0 && this.pDataLength[index] > 0 && this.pPage != null)
+        {
+            ByteBuffer b = this.pPage.duplicate();
+            b.position(this.pDataOffset[index]);
+            b.limit(this.pDataOffset[index] + this.pDataLength[index]);
+            return b.slice().asReadOnlyBuffer();
+        }
+
+        byte[] data = getData(index);
+        return (data != null) ? ByteBuffer.wrap(data).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * 取出所有尚未取出的数据并释放页面。节点被修改或其页面将要改变之前必须调用. 负载存储管理器中的数据不会改变, 不需要取出
+     */
+    protected synchronized void loadData()
+    {
+        if (this.pPage == null) return;
+
+        for (int cChild = 0; cChild < this.children; cChild++)
+        {
+            if (this.pBlob[cChild] < 0) getData(cChild);
+        }
+        this.pPage = null;
+    }
+
+    /**
+     * 复制节点, 数组各自独立, 数据本身共享. 用于把缓存中共享的节点交给会修改它的调用者
+     * @return
+     */
+    protected synchronized Node copy()
+    {
+        Node n;
+        if (this.level == 0) n = new Leaf(this.pTree, this.identifier);
+        else n = new Index(this.pTree, this.identifier, this.level);
+
+        int dim = this.pTree.dimension;
+
+        n.children = this.children;
+        n.nodeMBR = (Region) this.nodeMBR.clone();
+        n.totalDataLength = this.totalDataLength;
+        n.pPage = this.pPage;
+
+        System.arraycopy(this.pData, 0, n.pData, 0, this.children);
+        System.arraycopy(this.pDataLength, 0, n.pDataLength, 0, this.children);
+        System.arraycopy(this.pDataOffset, 0, n.pDataOffset, 0, this.children);
+        System.arraycopy(this.pBlob, 0, n.pBlob, 0, this.children);
+        System.arraycopy(this.pIdentifier, 0, n.pIdentifier, 0, this.children);
+        System.arraycopy(this.pLows, 0, n.pLows, 0, this.children * dim);
+        System.arraycopy(this.pHighs, 0, n.pHighs, 0, this.children * dim);
+
+        return n;
+    }
+
+    /**
+     * 根据所有子节点的矩形重新计算节点的MBR
+     */
+    protected void recalculateMBR()
+    {
+        int dim = this.pTree.dimension;
+
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            this.nodeMBR.pLow[cDim] = Double.POSITIVE_INFINITY;
+            this.nodeMBR.pHigh[cDim] = Double.NEGATIVE_INFINITY;
+
+            for (int cChild = 0; cChild < this.children; cChild++)
             {
-                this.nodeMBR.pLow[cDim] = Double.POSITIVE_INFINITY;
-                this.nodeMBR.pHigh[cDim] = Double.NEGATIVE_INFINITY;
+                this.nodeMBR.pLow[cDim] = Math.min(this.nodeMBR.pLow[cDim], this.pLows[cChild * dim + cDim]);
+                this.nodeMBR.pHigh[cDim] = Math.max(this.nodeMBR.pHigh[cDim], this.pHighs[cChild * dim + cDim]);
+            }
+        }
+    }
 
-                for (int cChild = 0; cChild < this.children; cChild++)
-                {
-                    this.nodeMBR.pLow[cDim] = Math.min(this.nodeMBR.pLow[cDim], this.pMBR[cChild].pLow[cDim]);
-                    this.nodeMBR.pHigh[cDim] = Math.max(this.nodeMBR.pHigh[cDim], this.pMBR[cChild].pHigh[cDim]);
-                }
+    /**
+     * 生成指定下标子节点的矩形, 只在需要Region对象时使用
+     * @param index
+     * @return
+     */
+    protected Region getChildMBR(int index)
+    {
+        int dim = this.pTree.dimension;
+        Region r = new Region();
+        r.pLow = new double[dim];
+        r.pHigh = new double[dim];
+        System.arraycopy(this.pLows, index * dim, r.pLow, 0, dim);
+        System.arraycopy(this.pHighs, index * dim, r.pHigh, 0, dim);
+        return r;
+    }
+
+    // fills r instead of allocating a new region.
+    protected void getChildMBR(int index, Region r)
+    {
+        int dim = this.pTree.dimension;
+        System.arraycopy(this.pLows, index * dim, r.pLow, 0, dim);
+        System.arraycopy(this.pHighs, index * dim, r.pHigh, 0, dim);
+    }
+
+    protected void setChildMBR(int index, Region r)
+    {
+        System.arraycopy(r.pLow, 0, this.pLows, index * this.pTree.dimension, this.pTree.dimension);
+        System.arraycopy(r.pHigh, 0, this.pHighs, index * this.pTree.dimension, this.pTree.dimension);
+    }
+
+    /**
+     * 判断指定下标子节点的矩形是否与查询相交, 对Region和Point直接在数组上计算
+     * @param index
+     * @param query
+     * @return
+     */
+    protected boolean childIntersects(int index, IShape query)
+    {
+        int dim = this.pTree.dimension;
+        int base = index * dim;
+
+        if (query instanceof Region)
+        {
+            Region r = (Region) query;
+
+            for (int cDim = 0; cDim < dim; cDim++)
+            {
+                if (this.pLows[base + cDim] > r.pHigh[cDim] || this.pHighs[base + cDim] < r.pLow[cDim]) return false;
             }
+            return true;
         }
+
+        if (query instanceof Point)
+        {
+            Point p = (Point) query;
+
+            for (int cDim = 0; cDim < dim; cDim++)
+            {
+                if (this.pLows[base + cDim] > p.pCoords[cDim] || this.pHighs[base + cDim] < p.pCoords[cDim]) return false;
+            }
+            return true;
+        }
+
+        return query.intersects(getChildMBR(index));
+    }
+
+    /**
+     * 判断指定下标子节点的矩形是否被查询包含
+     * @param index
+     * @param query
+     * @return
+     */
+    protected boolean childContainedBy(int index, IShape query)
+    {
+        if (! (query instanceof Region)) return query.contains(getChildMBR(index));
+
+        Region r = (Region) query;
+        int dim = this.pTree.dimension;
+        int base = index * dim;
+
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            if (r.pLow[cDim] > this.pLows[base + cDim] || r.pHigh[cDim] < this.pHighs[base + cDim]) return false;
+        }
+        return true;
     }
 
+    protected boolean childContains(int index, Region r)
+    {
+        int dim = this.pTree.dimension;
+        int base = index * dim;
 
-    protected boolean insertData(byte[] pData, Region mbr, int id, Stack pathBuffer, boolean[] overflowTable)
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            if (this.pLows[base + cDim] > r.pLow[cDim] || this.pHighs[base + cDim] < r.pHigh[cDim]) return false;
+        }
+        return true;
+    }
+
+    protected boolean childTouches(int index, Region r)
     {
+        int dim = this.pTree.dimension;
+        int base = index * dim;
+
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            if ((this.pLows[base + cDim] > r.pLow[cDim] - SpatialIndex.EPSILON && this.pLows[base + cDim] < r.pLow[cDim] + SpatialIndex.EPSILON) ||
+                    (this.pHighs[base + cDim] > r.pHigh[cDim] - SpatialIndex.EPSILON && this.pHighs[base + cDim] < r.pHigh[cDim] + SpatialIndex.EPSILON))
+                return true;
+        }
+        return false;
+    }
+
+    protected boolean childEquals(int index, Region r)
+    {
+        int dim = this.pTree.dimension;
+        int base = index * dim;
+
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            if (this.pLows[base + cDim] < r.pLow[cDim] - SpatialIndex.EPSILON || this.pLows[base + cDim] > r.pLow[cDim] + SpatialIndex.EPSILON ||
+                    this.pHighs[base + cDim] < r.pHigh[cDim] - SpatialIndex.EPSILON || this.pHighs[base + cDim] > r.pHigh[cDim] + SpatialIndex.EPSILON)
+                return false;
+        }
+        return true;
+    }
+
+    protected double getChildArea(int index)
+    {
+        int dim = this.pTree.dimension;
+        int base = index * dim;
+        double area = 1.0;
+
+        for (int cDim = 0; cDim < dim; cDim++) area *= this.pHighs[base + cDim] - this.pLows[base + cDim];
+        return area;
+    }
+
+    /**
+     * 计算指定下标子节点的矩形与r合并后的面积, 不生成合并后的Region
+     * @param index
+     * @param r
+     * @return
+     */
+    protected double getChildCombinedArea(int index, Region r)
+    {
+        int dim = this.pTree.dimension;
+        int base = index * dim;
+        double area = 1.0;
+
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            area *= Math.max(this.pHighs[base + cDim], r.pHigh[cDim]) - Math.min(this.pLows[base + cDim], r.pLow[cDim]);
+        }
+        return area;
+    }
+
+    protected double getChildIntersectingArea(int index, Region r)
+    {
+        int dim = this.pTree.dimension;
+        int base = index * dim;
+
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            if (this.pLows[base + cDim] > r.pHigh[cDim] || this.pHighs[base + cDim] < r.pLow[cDim]) return 0.0;
+        }
+
+        double ret = 1.0;
+
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            ret *= Math.min(this.pHighs[base + cDim], r.pHigh[cDim]) - Math.max(this.pLows[base + cDim], r.pLow[cDim]);
+        }
+        return ret;
+    }
+
+
+    protected boolean insertData(byte[] pData, int blob, Region mbr, int id, IntStack pathBuffer, boolean[] overflowTable)
+    {
+        // the overflowing entry is kept in the spare slot. reinsertData and split fill in the rest of it.
+        if (children >= capacity) pBlob[capacity] = blob;
+
         if (children < capacity)//如果子节点数量没有超过节点容量，插入数据，写入节点
         {
             boolean adjusted = false;
             boolean b = nodeMBR.contains(mbr);
 
-            insertEntry(pData, mbr, id);
+            insertEntry(pData, blob, mbr, id);
             pTree.writeNode(this);
 
             if (! b && ! pathBuffer.empty())//如果数据的MBR不在节点的MBR内且缓存不为空，则需找到其父索引节点并调整树
             {
-                int cParent = ((Integer) pathBuffer.pop()).intValue();
+                int cParent = pathBuffer.pop();
                 Index p = (Index) pTree.readNode(cParent);
                 p.adjustTree(this, pathBuffer);
                 adjusted = true;
@@ -177,76 +512,43 @@ public abstract class Node implements INode {
         {
             overflowTable[level] = true;
 
-            ArrayList vReinsert = new ArrayList(), vKeep = new ArrayList();
-            reinsertData(pData, mbr, id, vReinsert, vKeep);
-
-            int lReinsert = vReinsert.size();
-            int lKeep = vKeep.size();
-
-            byte[][] reinsertdata = new byte[lReinsert][];
-            Region[] reinsertmbr = new Region[lReinsert];
-            int[] reinsertid = new int[lReinsert];
-            int[] reinsertlen = new int[lReinsert];
-            byte[][] keepdata = new byte[capacity + 1][];
-            Region[] keepmbr = new Region[capacity + 1];
-            int[] keepid = new int[capacity + 1];
-            int[] keeplen = new int[capacity + 1];
+            int[] order = pTree.sortOrder;
+            int lReinsert = reinsertData(pData, mbr, id, order);
+            int lKeep = capacity + 1 - lReinsert;
 
             int cIndex;
 
-            for (cIndex = 0; cIndex < lReinsert; cIndex++)
-            {
-                int i = ((Integer) vReinsert.get(cIndex)).intValue();
-                reinsertlen[cIndex] = pDataLength[i];
-                reinsertdata[cIndex] = this.pData[i];
-                reinsertmbr[cIndex] = pMBR[i];
-                reinsertid[cIndex] = pIdentifier[i];
-            }
+            // the reinserted entries are kept in a buffer of this level, reinserts of other levels can happen
+            // while they are inserted again.
+            RTree.ReinsertBuffer reinsert = pTree.getReinsertBuffer(level);
+            for (cIndex = 0; cIndex < lReinsert; cIndex++) reinsert.copyFrom(cIndex, this, order[cIndex]);
 
-            for (cIndex = 0; cIndex < lKeep; cIndex++)
-            {
-                int i = ((Integer) vKeep.get(cIndex)).intValue();
-                keeplen[cIndex] = pDataLength[i];
-                keepdata[cIndex] = this.pData[i];
-                keepmbr[cIndex] = pMBR[i];
-                keepid[cIndex] = pIdentifier[i];
-            }
+            // the kept entries are moved to the front of the node through the keep buffer.
+            RTree.ReinsertBuffer keep = pTree.keepBuffer;
+            for (cIndex = 0; cIndex < lKeep; cIndex++) keep.copyFrom(cIndex, this, order[lReinsert + cIndex]);
+            for (cIndex = 0; cIndex < lKeep; cIndex++) keep.copyTo(cIndex, this, cIndex);
+            Arrays.fill(this.pData, lKeep, capacity + 1, null);
 
-            pDataLength = keeplen;
-            this.pData = keepdata;
-            this.pMBR = keepmbr;
-            pIdentifier = keepid;
             children = lKeep;
             totalDataLength = 0;
             for (int cChild = 0; cChild < children; cChild++) totalDataLength += pDataLength[cChild];
 
-            for (int cDim = 0; cDim < pTree.dimension; cDim++)
-            {
-                nodeMBR.pLow[cDim] = Double.POSITIVE_INFINITY;
-                nodeMBR.pHigh[cDim] = Double.NEGATIVE_INFINITY;
-
-                for (int cChild = 0; cChild < children; cChild++)
-                {
-                    nodeMBR.pLow[cDim] = Math.min(nodeMBR.pLow[cDim], pMBR[cChild].pLow[cDim]);
-                    nodeMBR.pHigh[cDim] = Math.max(nodeMBR.pHigh[cDim], pMBR[cChild].pHigh[cDim]);
-                }
-            }
+            recalculateMBR();
 
             pTree.writeNode(this);
 
             // Divertion from R*-Tree algorithm here. First adjust
             // the path to the root, then start reinserts, to avoid complicated handling
             // of changes to the same node from multiple insertions.
-            int cParent = ((Integer) pathBuffer.pop()).intValue();
+            int cParent = pathBuffer.pop();
             Index p = (Index) pTree.readNode(cParent);
             p.adjustTree(this, pathBuffer);
 
             for (cIndex = 0; cIndex < lReinsert; cIndex++)
             {
-                pTree.insertData_impl(reinsertdata[cIndex],
-                        reinsertmbr[cIndex],
-                        reinsertid[cIndex],
-                        level, overflowTable);
+                byte[] data = reinsert.data[cIndex];
+                reinsert.data[cIndex] = null;
+                pTree.insertData_impl(data, reinsert.blobs[cIndex], reinsert.getMBR(cIndex), reinsert.ids[cIndex], level, overflowTable);
             }
 
             return true;
@@ -283,7 +585,7 @@ public abstract class Node implements INode {
                 pTree.writeNode(n);
                 pTree.writeNode(nn);
 
-                int cParent = ((Integer) pathBuffer.pop()).intValue();
+                int cParent = pathBuffer.pop();
                 Index p = (Index) pTree.readNode(cParent);
                 p.adjustTree(n, nn, pathBuffer, overflowTable);
             }
@@ -293,85 +595,75 @@ public abstract class Node implements INode {
     }
 
     /**
-     *
+     * 按到节点中心的距离从近到远排列全部实体(包括新实体), 返回需要重新插入的个数. 重新插入的实体排在order的前面
      * @param pData
      * @param mbr
      * @param id
-     * @param reinsert
-     * @param keep
+     * @param order
+     * @return
      */
-    protected void reinsertData(byte[] pData, Region mbr, int id, ArrayList reinsert, ArrayList keep)
+    protected int reinsertData(byte[] pData, Region mbr, int id, int[] order)
     {
-        ReinsertEntry[] v = new ReinsertEntry[capacity + 1];
+        double[] dist = pTree.sortKeys;
+        int dim = pTree.dimension;
+
+        loadData();
 
         pDataLength[children] = (pData != null) ? pData.length : 0;
         this.pData[children] = pData;
-        pMBR[children] = mbr;
+        setChildMBR(children, mbr);
         pIdentifier[children] = id;
 
-        double[] nc = nodeMBR.getCenter();
-
         for (int cChild = 0; cChild < capacity + 1; cChild++)
         {
-            ReinsertEntry e = new ReinsertEntry(cChild, 0.0f);
-
-            double[] c = pMBR[cChild].getCenter();
+            order[cChild] = cChild;
+            dist[cChild] = 0.0;
 
             // calculate relative distance of every entry from the node MBR (ignore square root.)
-            for (int cDim = 0; cDim < pTree.dimension; cDim++)
+            for (int cDim = 0; cDim < dim; cDim++)
             {
-                double d = nc[cDim] - c[cDim];
-                e.dist += d * d;
+                int i = cChild * dim + cDim;
+                double d = (nodeMBR.pLow[cDim] + nodeMBR.pHigh[cDim]) / 2.0 - (pLows[i] + pHighs[i]) / 2.0;
+                dist[cChild] += d * d;
             }
-
-            v[cChild] = e;
         }
 
         // sort by increasing order of distances.
-        Arrays.sort(v, new ReinsertEntryComparator());
-
-        int cReinsert = (int) Math.floor((capacity + 1) * pTree.reinsertFactor);
-        int cCount;
+        sortEntries(order, capacity + 1, dist, 1, 0);
 
-        for (cCount = 0; cCount < cReinsert; cCount++)
-        {
-            reinsert.add(new Integer(v[cCount].id));
-        }
-
-        for (cCount = cReinsert; cCount < capacity + 1; cCount++)
-        {
-            keep.add(new Integer(v[cCount].id));
-        }
+        return (int) Math.floor((capacity + 1) * pTree.reinsertFactor);
     }
 
-    protected void rtreeSplit(byte[] pData, Region mbr, int id, ArrayList group1, ArrayList group2)
+    protected void rtreeSplit(byte[] pData, Region mbr, int id, IntStack group1, IntStack group2)
     {
         int cChild;
         int minimumLoad = (int) Math.floor(capacity * pTree.fillFactor);
 
+        loadData();
+
         // use this mask array for marking visited entries.
-        boolean[] mask = new boolean[capacity + 1];
+        boolean[] mask = pTree.scratchMask;
         for (cChild = 0; cChild < capacity + 1; cChild++) mask[cChild] = false;
 
         // insert new data in the node for easier manipulation. Data arrays are always
         // by one larger than node capacity.
         pDataLength[capacity] = (pData != null) ? pData.length : 0;
         this.pData[capacity] = pData;
-        pMBR[capacity] = mbr;
+        setChildMBR(capacity, mbr);
         pIdentifier[capacity] = id;
 
         // initialize each group with the seed entries.
         int[] seeds = pickSeeds();
 
-        group1.add(new Integer(seeds[0]));
-        group2.add(new Integer(seeds[1]));
+        group1.push(seeds[0]);
+        group2.push(seeds[1]);
 
         mask[seeds[0]] = true;
         mask[seeds[1]] = true;
 
         // find MBR of each group.
-        Region mbr1 = (Region) pMBR[seeds[0]].clone();
-        Region mbr2 = (Region) pMBR[seeds[1]].clone();
+        Region mbr1 = getChildMBR(seeds[0]);
+        Region mbr2 = getChildMBR(seeds[1]);
 
         // count how many entries are left unchecked (exclude the seeds here.)
         int cRemaining = capacity + 1 - 2;
@@ -385,7 +677,7 @@ public abstract class Node implements INode {
                 {
                     if (mask[cChild] == false)
                     {
-                        group1.add(new Integer(cChild));
+                        group1.push(cChild);
                         mask[cChild] = true;
                         cRemaining--;
                     }
@@ -398,7 +690,7 @@ public abstract class Node implements INode {
                 {
                     if (mask[cChild] == false)
                     {
-                        group2.add(new Integer(cChild));
+                        group2.push(cChild);
                         mask[cChild] = true;
                         cRemaining--;
                     }
@@ -420,10 +712,8 @@ public abstract class Node implements INode {
                 {
                     if (mask[cChild] == false)
                     {
-                        Region a = mbr1.combinedRegion(pMBR[cChild]);
-                        d1 = a.getArea() - a1;
-                        Region b = mbr2.combinedRegion(pMBR[cChild]);
-                        d2 = b.getArea() - a2;
+                        d1 = getChildCombinedArea(cChild, mbr1) - a1;
+                        d2 = getChildCombinedArea(cChild, mbr2) - a2;
                         d = Math.abs(d1 - d2);
 
                         if (d > m)
@@ -441,74 +731,75 @@ public abstract class Node implements INode {
 
                 if (md1 < md2)
                 {
-                    group1.add(new Integer(sel));
+                    group1.push(sel);
                     group = 1;
                 }
                 else if (md2 < md1)
                 {
-                    group2.add(new Integer(sel));
+                    group2.push(sel);
                     group = 2;
                 }
                 else if (a1 < a2)
                 {
-                    group1.add(new Integer(sel));
+                    group1.push(sel);
                     group = 1;
                 }
                 else if (a2 < a1)
                 {
-                    group2.add(new Integer(sel));
+                    group2.push(sel);
                     group = 2;
                 }
                 else if (group1.size() < group2.size())
                 {
-                    group1.add(new Integer(sel));
+                    group1.push(sel);
                     group = 1;
                 }
                 else if (group2.size() < group1.size())
                 {
-                    group2.add(new Integer(sel));
+                    group2.push(sel);
                     group = 2;
                 }
                 else
                 {
-                    group1.add(new Integer(sel));
+                    group1.push(sel);
                     group = 1;
                 }
                 mask[sel] = true;
                 cRemaining--;
                 if (group == 1)
                 {
-                    Region.combinedRegion(mbr1, pMBR[sel]);
+                    Region.combinedRegion(mbr1, getChildMBR(sel));
                 }
                 else
                 {
-                    Region.combinedRegion(mbr2, pMBR[sel]);
+                    Region.combinedRegion(mbr2, getChildMBR(sel));
                 }
             }
         }
     }
 
-    protected void rstarSplit(byte[] pData, Region mbr, int id, ArrayList group1, ArrayList group2)
+    protected void rstarSplit(byte[] pData, Region mbr, int id, IntStack group1, IntStack group2)
     {
-        RstarSplitEntry[] dataLow = new RstarSplitEntry[capacity + 1];;
-        RstarSplitEntry[] dataHigh = new RstarSplitEntry[capacity + 1];;
+        // entries are sorted as indices into the node arrays.
+        int[] dataLow = pTree.sortOrder;
+        int[] dataHigh = pTree.sortOther;
+
+        loadData();
 
         pDataLength[children] = (pData != null) ? pData.length : 0;
         this.pData[capacity] = pData;
-        pMBR[capacity] = mbr;
+        setChildMBR(capacity, mbr);
         pIdentifier[capacity] = id;
 
         int nodeSPF = (int) (Math.floor((capacity + 1) * pTree.splitDistributionFactor));
         int splitDistribution = (capacity + 1) - (2 * nodeSPF) + 2;
 
-        int cChild, cDim, cIndex;
+        int cChild, cDim;
 
         for (cChild = 0; cChild < capacity + 1; cChild++)
         {
-            RstarSplitEntry e = new RstarSplitEntry(pMBR[cChild], cChild, 0);
-
-            dataLow[cChild] = e;
-            dataHigh[cChild] = e;
+            dataLow[cChild] = cChild;
+            dataHigh[cChild] = cChild;
         }
 
         double minimumMargin = Double.POSITIVE_INFINITY;
@@ -518,46 +809,26 @@ public abstract class Node implements INode {
         // chooseSplitAxis.
         for (cDim = 0; cDim < pTree.dimension; cDim++)
         {
-            Arrays.sort(dataLow, new RstarSplitEntryComparatorLow());
-            Arrays.sort(dataHigh, new RstarSplitEntryComparatorHigh());
+            sortEntries(dataLow, capacity + 1, pLows, pTree.dimension, cDim);
+            sortEntries(dataHigh, capacity + 1, pHighs, pTree.dimension, cDim);
 
             // calculate sum of margins and overlap for all distributions.
             double marginl = 0.0;
             double marginh = 0.0;
 
+            boundingRegions(dataLow);
             for (cChild = 1; cChild <= splitDistribution; cChild++)
             {
                 int l = nodeSPF - 1 + cChild;
+                marginl += getMargin(pTree.scratchLows, pTree.scratchHighs, l - 1) + getMargin(pTree.scratchRestLows, pTree.scratchRestHighs, l);
+            }
 
-                Region[] tl1 = new Region[l];
-                Region[] th1 = new Region[l];
-
-                for (cIndex = 0; cIndex < l; cIndex++)
-                {
-                    tl1[cIndex] = dataLow[cIndex].pRegion;
-                    th1[cIndex] = dataHigh[cIndex].pRegion;
-                }
-
-                Region bbl1 = Region.combinedRegion(tl1);
-                Region bbh1 = Region.combinedRegion(th1);
-
-                Region[] tl2 = new Region[capacity + 1 - l];
-                Region[] th2 = new Region[capacity + 1 - l];
-
-                int tmpIndex = 0;
-                for (cIndex = l; cIndex < capacity + 1; cIndex++)
-                {
-                    tl2[tmpIndex] = dataLow[cIndex].pRegion;
-                    th2[tmpIndex] = dataHigh[cIndex].pRegion;
-                    tmpIndex++;
-                }
-
-                Region bbl2 = Region.combinedRegion(tl2);
-                Region bbh2 = Region.combinedRegion(th2);
-
-                marginl += bbl1.getMargin() + bbl2.getMargin();
-                marginh += bbh1.getMargin() + bbh2.getMargin();
-            } // for (cChild)
+            boundingRegions(dataHigh);
+            for (cChild = 1; cChild <= splitDistribution; cChild++)
+            {
+                int l = nodeSPF - 1 + cChild;
+                marginh += getMargin(pTree.scratchLows, pTree.scratchHighs, l - 1) + getMargin(pTree.scratchRestLows, pTree.scratchRestHighs, l);
+            }
 
             double margin = Math.min(marginl, marginh);
 
@@ -568,63 +839,34 @@ public abstract class Node implements INode {
                 splitAxis = cDim;
                 sortOrder = (marginl < marginh) ? 0 : 1;
             }
-
-            // increase the dimension according to which the data entries should be sorted.
-            for (cChild = 0; cChild < capacity + 1; cChild++)
-            {
-                dataLow[cChild].sortDim = cDim + 1;
-            }
         } // for (cDim)
 
-        for (cChild = 0; cChild < capacity + 1; cChild++)
-        {
-            dataLow[cChild].sortDim = splitAxis;
-        }
-
         if (sortOrder == 0)
-            Arrays.sort(dataLow, new RstarSplitEntryComparatorLow());
+            sortEntries(dataLow, capacity + 1, pLows, pTree.dimension, splitAxis);
         else
-            Arrays.sort(dataLow, new RstarSplitEntryComparatorHigh());
+            sortEntries(dataLow, capacity + 1, pHighs, pTree.dimension, splitAxis);
 
         double ma = Double.POSITIVE_INFINITY;
         double mo = Double.POSITIVE_INFINITY;
         int splitPoint = -1;
 
+        boundingRegions(dataLow);
+
         for (cChild = 1; cChild <= splitDistribution; cChild++)
         {
             int l = nodeSPF - 1 + cChild;
 
-            Region[] t1 = new Region[l];
-
-            for (cIndex = 0; cIndex < l; cIndex++)
-            {
-                t1[cIndex] = dataLow[cIndex].pRegion;
-            }
-
-            Region bb1 = Region.combinedRegion(t1);
-
-            Region[] t2 = new Region[capacity + 1 - l];
-
-            int tmpIndex = 0;
-            for (cIndex = l; cIndex < capacity + 1; cIndex++)
-            {
-                t2[tmpIndex] = dataLow[cIndex].pRegion;
-                tmpIndex++;
-            }
-
-            Region bb2 = Region.combinedRegion(t2);
-
-            double o = bb1.getIntersectingArea(bb2);
+            double o = getIntersectingArea(l - 1, l);
 
             if (o < mo)
             {
                 splitPoint = cChild;
                 mo = o;
-                ma = bb1.getArea() + bb2.getArea();
+                ma = getArea(pTree.scratchLows, pTree.scratchHighs, l - 1) + getArea(pTree.scratchRestLows, pTree.scratchRestHighs, l);
             }
             else if (o == mo)
             {
-                double a = bb1.getArea() + bb2.getArea();
+                double a = getArea(pTree.scratchLows, pTree.scratchHighs, l - 1) + getArea(pTree.scratchRestLows, pTree.scratchRestHighs, l);
 
                 if (a < ma)
                 {
@@ -636,15 +878,132 @@ public abstract class Node implements INode {
 
         int l1 = nodeSPF - 1 + splitPoint;
 
-        for (cIndex = 0; cIndex < l1; cIndex++)
+        for (int cIndex = 0; cIndex < l1; cIndex++)
+        {
+            group1.push(dataLow[cIndex]);
+        }
+
+        for (int cIndex = l1; cIndex <= capacity; cIndex++)
+        {
+            group2.push(dataLow[cIndex]);
+        }
+    }
+
+    /**
+     * 按keys[entry * stride + offset]从小到大稳定地排列前count个实体, 使用树上的缓冲区归并, 不分配内存
+     * @param entries
+     * @param count
+     * @param keys
+     * @param stride
+     * @param offset
+     */
+    protected void sortEntries(int[] entries, int count, double[] keys, int stride, int offset)
+    {
+        int[] from = entries;
+        int[] to = pTree.sortBuffer;
+
+        for (int width = 1; width < count; width *= 2)
+        {
+            for (int lo = 0; lo < count; lo += 2 * width)
+            {
+                int mid = Math.min(lo + width, count);
+                int hi = Math.min(lo + 2 * width, count);
+                int i = lo, j = mid, k = lo;
+
+                // on equal keys the left entry goes first, which keeps the sort stable.
+                while (i < mid && j < hi)
+                {
+                    if (keys[from[j] * stride + offset] < keys[from[i] * stride + offset]) to[k++] = from[j++];
+                    else to[k++] = from[i++];
+                }
+                while (i < mid) to[k++] = from[i++];
+                while (j < hi) to[k++] = from[j++];
+            }
+
+            int[] t = from;
+            from = to;
+            to = t;
+        }
+
+        if (from != entries) System.arraycopy(from, 0, entries, 0, count);
+    }
+
+    /**
+     * 对排好序的全部实体计算前缀与后缀的包围矩形: scratchLows/Highs的第k个是前k+1个实体的, scratchRestLows/Highs的第k个是从第k个起其余实体的
+     * @param entries
+     */
+    private void boundingRegions(int[] entries)
+    {
+        int dim = pTree.dimension;
+        int count = capacity + 1;
+        double[] lows = pTree.scratchLows, highs = pTree.scratchHighs;
+        double[] restLows = pTree.scratchRestLows, restHighs = pTree.scratchRestHighs;
+
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            double low = Double.POSITIVE_INFINITY, high = Double.NEGATIVE_INFINITY;
+
+            for (int cIndex = 0; cIndex < count; cIndex++)
+            {
+                low = Math.min(low, pLows[entries[cIndex] * dim + cDim]);
+                high = Math.max(high, pHighs[entries[cIndex] * dim + cDim]);
+                lows[cIndex * dim + cDim] = low;
+                highs[cIndex * dim + cDim] = high;
+            }
+
+            low = Double.POSITIVE_INFINITY;
+            high = Double.NEGATIVE_INFINITY;
+
+            for (int cIndex = count - 1; cIndex >= 0; cIndex--)
+            {
+                low = Math.min(low, pLows[entries[cIndex] * dim + cDim]);
+                high = Math.max(high, pHighs[entries[cIndex] * dim + cDim]);
+                restLows[cIndex * dim + cDim] = low;
+                restHighs[cIndex * dim + cDim] = high;
+            }
+        }
+    }
+
+    // same as Region.getMargin and Region.getArea, on the index-th region of the arrays.
+    private double getMargin(double[] lows, double[] highs, int index)
+    {
+        int dim = pTree.dimension;
+        double mul = Math.pow(2.0, ((double) dim) - 1.0);
+        double margin = 0.0;
+
+        for (int cDim = 0; cDim < dim; cDim++) margin += (highs[index * dim + cDim] - lows[index * dim + cDim]) * mul;
+        return margin;
+    }
+
+    private double getArea(double[] lows, double[] highs, int index)
+    {
+        int dim = pTree.dimension;
+        double area = 1.0;
+
+        for (int cDim = 0; cDim < dim; cDim++) area *= highs[index * dim + cDim] - lows[index * dim + cDim];
+        return area;
+    }
+
+    // intersecting area of the first group ending at entry first and the second group starting at entry second.
+    private double getIntersectingArea(int first, int second)
+    {
+        int dim = pTree.dimension;
+        double[] lows = pTree.scratchLows, highs = pTree.scratchHighs;
+        double[] restLows = pTree.scratchRestLows, restHighs = pTree.scratchRestHighs;
+        int cDim;
+
+        for (cDim = 0; cDim < dim; cDim++)
         {
-            group1.add(new Integer(dataLow[cIndex].id));
+            if (lows[first * dim + cDim] > restHighs[second * dim + cDim] || highs[first * dim + cDim] < restLows[second * dim + cDim]) return 0.0;
         }
 
-        for (cIndex = l1; cIndex <= capacity; cIndex++)
+        double ret = 1.0;
+
+        for (cDim = 0; cDim < dim; cDim++)
         {
-            group2.add(new Integer(dataLow[cIndex].id));
+            ret *= Math.min(highs[first * dim + cDim], restHighs[second * dim + cDim]) - Math.max(lows[first * dim + cDim], restLows[second * dim + cDim]);
         }
+        return ret;
     }
 
     protected int[] pickSeeds()
@@ -657,27 +1016,29 @@ public abstract class Node implements INode {
         {
             case SpatialIndex.RtreeVariantLinear:
             case SpatialIndex.RtreeVariantRstar:
-                for (cDim = 0; cDim < pTree.dimension; cDim++)
+                int dim = pTree.dimension;
+
+                for (cDim = 0; cDim < dim; cDim++)
                 {
-                    double leastLower = pMBR[0].pLow[cDim];
-                    double greatestUpper = pMBR[0].pHigh[cDim];
+                    double leastLower = pLows[cDim];
+                    double greatestUpper = pHighs[cDim];
                     int greatestLower = 0;
                     int leastUpper = 0;
                     double width;
 
                     for (cChild = 1; cChild < capacity + 1; cChild++)
                     {
-                        if (pMBR[cChild].pLow[cDim] > pMBR[greatestLower].pLow[cDim]) greatestLower = cChild;
-                        if (pMBR[cChild].pHigh[cDim] < pMBR[leastUpper].pHigh[cDim]) leastUpper = cChild;
+                        if (pLows[cChild * dim + cDim] > pLows[greatestLower * dim + cDim]) greatestLower = cChild;
+                        if (pHighs[cChild * dim + cDim] < pHighs[leastUpper * dim + cDim]) leastUpper = cChild;
 
-                        leastLower = Math.min(pMBR[cChild].pLow[cDim], leastLower);
-                        greatestUpper = Math.max(pMBR[cChild].pHigh[cDim], greatestUpper);
+                        leastLower = Math.min(pLows[cChild * dim + cDim], leastLower);
+                        greatestUpper = Math.max(pHighs[cChild * dim + cDim], greatestUpper);
                     }
 
                     width = greatestUpper - leastLower;
                     if (width <= 0) width = 1;
 
-                    double f = (pMBR[greatestLower].pLow[cDim] - pMBR[leastUpper].pHigh[cDim]) / width;
+                    double f = (pLows[greatestLower * dim + cDim] - pHighs[leastUpper * dim + cDim]) / width;
 
                     if (f > separation)
                     {
@@ -697,15 +1058,13 @@ public abstract class Node implements INode {
                 // for each pair of Regions (account for overflow Region too!)
                 for (cChild = 0; cChild < capacity; cChild++)
                 {
-                    double a = pMBR[cChild].getArea();
+                    double a = getChildArea(cChild);
+                    Region r = getChildMBR(cChild);
 
                     for (cIndex = cChild + 1; cIndex < capacity + 1; cIndex++)
                     {
-                        // get the combined MBR of those two entries.
-                        Region r = pMBR[cChild].combinedRegion(pMBR[cIndex]);
-
                         // find the inefficiency of grouping these entries together.
-                        double d = r.getArea() - a - pMBR[cIndex].getArea();
+                        double d = getChildCombinedArea(cIndex, r) - a - getChildArea(cIndex);
 
                         if (d > inefficiency)
                         {
@@ -727,7 +1086,7 @@ public abstract class Node implements INode {
         return ret;
     }
 
-    protected void condenseTree(Stack toReinsert, Stack pathBuffer)
+    protected void condenseTree(Stack toReinsert, IntStack pathBuffer)
     {
         int minimumLoad = (int) (Math.floor(capacity * pTree.fillFactor));
 
@@ -749,7 +1108,7 @@ public abstract class Node implements INode {
         }
         else
         {
-            int cParent = ((Integer) pathBuffer.pop()).intValue();
+            int cParent = pathBuffer.pop();
             Index p = (Index) pTree.readNode(cParent);
 
             // find the entry in the parent, that points to this node.
@@ -771,21 +1130,11 @@ public abstract class Node implements INode {
             else
             {
                 // adjust the entry in 'p' to contain the new bounding region of this node.
-                p.pMBR[child] = (Region) nodeMBR.clone();
+                p.setChildMBR(child, nodeMBR);
 
                 // global recalculation necessary since the MBR can only shrink in size,
                 // due to data removal.
-                for (int cDim = 0; cDim < pTree.dimension; cDim++)
-                {
-                    p.nodeMBR.pLow[cDim] = Double.POSITIVE_INFINITY;
-                    p.nodeMBR.pHigh[cDim] = Double.NEGATIVE_INFINITY;
-
-                    for (int cChild = 0; cChild < p.children; cChild++)
-                    {
-                        p.nodeMBR.pLow[cDim] = Math.min(p.nodeMBR.pLow[cDim], p.pMBR[cChild].pLow[cDim]);
-                        p.nodeMBR.pHigh[cDim] = Math.max(p.nodeMBR.pHigh[cDim], p.pMBR[cChild].pHigh[cDim]);
-                    }
-                }
+                p.recalculateMBR();
             }
 
             // write parent node back to storage.
@@ -801,47 +1150,221 @@ public abstract class Node implements INode {
      * @throws IOException
      */
     protected void load(byte[] data) throws IOException
+    {
+        load(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * 直接从缓冲区中读入节点信息，不复制整个节点
+     * @param b
+     * @throws IOException
+     */
+    protected void load(ByteBuffer b) throws IOException
     {
         nodeMBR = (Region) pTree.infiniteRegion.clone();
+        pPage = b;
+
+        // the layout is the one written by DataOutputStream, which is big endian like ByteBuffer.
+        b = b.duplicate();
+
+        int type = b.getInt();
 
-        DataInputStream ds = new DataInputStream(new ByteArrayInputStream(data));
+        level = b.getInt();
+        children = b.getInt();
 
-        // skip the node type information, it is not needed.
-        ds.readInt();
+        int dim = pTree.dimension;
+
+        if (type == SpatialIndex.PersistentQuantizedIndex)
+        {
+            loadQuantized(b);
+            pPage = null;
+            return;
+        }
 
-        level = ds.readInt();
-        children = ds.readInt();
+        boolean blobs = (type == SpatialIndex.PersistentBlobLeaf);
 
         for (int cChild = 0; cChild < children; cChild++)
         {
-            pMBR[cChild] = new Region();
-            pMBR[cChild].pLow = new double[pTree.dimension];
-            pMBR[cChild].pHigh = new double[pTree.dimension];
+            for (int cDim = 0; cDim < dim; cDim++)
+            {
+                double low = b.getDouble();
+                double high = b.getDouble();
 
-            for (int cDim = 0; cDim < pTree.dimension; cDim++)
+                pLows[cChild * dim + cDim] = low;
+                pHighs[cChild * dim + cDim] = high;
+
+                if (low < nodeMBR.pLow[cDim]) nodeMBR.pLow[cDim] = low;
+                if (high > nodeMBR.pHigh[cDim]) nodeMBR.pHigh[cDim] = high;
+            }
+
+            pIdentifier[cChild] = b.getInt();
+
+            if (blobs)
             {
-                pMBR[cChild].pLow[cDim] = ds.readDouble();
-                pMBR[cChild].pHigh[cDim] = ds.readDouble();
+                // fixed size entries, the data is read from the payload storage manager when the entry is visited.
+                pBlob[cChild] = b.getInt();
+                pDataLength[cChild] = 0;
+                pData[cChild] = null;
+                continue;
             }
 
-            pIdentifier[cChild] = ds.readInt();
+            pBlob[cChild] = -1;
+
+            // only the position of the data is recorded, the bytes are copied when the entry is visited.
+            pDataLength[cChild] = b.getInt();
+            pDataOffset[cChild] = b.position();
+            pData[cChild] = null;
 
-            pDataLength[cChild] = ds.readInt();
             if (pDataLength[cChild] > 0)
             {
                 totalDataLength += pDataLength[cChild];
-                pData[cChild] = new byte[pDataLength[cChild]];
-                ds.read(pData[cChild]);
+                b.position(b.position() + pDataLength[cChild]);
             }
-            else
+        }
+
+        // index nodes carry no data, there is no need to keep the page.
+        if (totalDataLength == 0) pPage = null;
+    }
+
+    /**
+     * 读入量化的索引节点: 参考矩形, 然后每个子节点各维的上下界编码及编号
+     * @param b
+     */
+    private void loadQuantized(ByteBuffer b)
+    {
+        int dim = pTree.dimension;
+        int bits = b.getInt();
+        int max = (1 << bits) - 1;
+
+        double[] low = new double[dim];
+        double[] high = new double[dim];
+
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            low[cDim] = b.getDouble();
+            high[cDim] = b.getDouble();
+        }
+
+        for (int cChild = 0; cChild < children; cChild++)
+        {
+            for (int cDim = 0; cDim < dim; cDim++)
             {
-                pData[cChild] = null;
+                int ql = (bits == 8) ? (b.get() & 0xff) : (b.getShort() & 0xffff);
+                int qh = (bits == 8) ? (b.get() & 0xff) : (b.getShort() & 0xffff);
+
+                pLows[cChild * dim + cDim] = dequantize(ql, low[cDim], high[cDim], max);
+                pHighs[cChild * dim + cDim] = dequantize(qh, low[cDim], high[cDim], max);
+
+                nodeMBR.pLow[cDim] = Math.min(nodeMBR.pLow[cDim], pLows[cChild * dim + cDim]);
+                nodeMBR.pHigh[cDim] = Math.max(nodeMBR.pHigh[cDim], pHighs[cChild * dim + cDim]);
             }
 
-            Region.combinedRegion(nodeMBR, pMBR[cChild]);
+            pIdentifier[cChild] = b.getInt();
+            pDataLength[cChild] = 0;
+            pData[cChild] = null;
         }
     }
 
+    /**
+     * 把索引节点的子节点矩形量化为相对于所有子节点合并矩形的定长编码, 下界向下取整, 上界向上取整, 量化后的矩形总是包含原矩形
+     * @param ds
+     * @param bits 每个坐标的位数, 8或16
+     * @throws IOException
+     */
+    private void storeQuantized(DataOutputStream ds, int bits) throws IOException
+    {
+        int dim = pTree.dimension;
+        int max = (1 << bits) - 1;
+
+        ds.writeInt(SpatialIndex.PersistentQuantizedIndex);
+        ds.writeInt(level);
+        ds.writeInt(children);
+        ds.writeInt(bits);
+
+        // the reference region is recomputed, so that every child lies inside it.
+        double[] low = new double[dim];
+        double[] high = new double[dim];
+
+        for (int cDim = 0; cDim < dim; cDim++)
+        {
+            low[cDim] = Double.POSITIVE_INFINITY;
+            high[cDim] = Double.NEGATIVE_INFINITY;
+
+            for (int cChild = 0; cChild < children; cChild++)
+            {
+                low[cDim] = Math.min(low[cDim], pLows[cChild * dim + cDim]);
+                high[cDim] = Math.max(high[cDim], pHighs[cChild * dim + cDim]);
+            }
+
+            ds.writeDouble(low[cDim]);
+            ds.writeDouble(high[cDim]);
+        }
+
+        for (int cChild = 0; cChild < children; cChild++)
+        {
+            for (int cDim = 0; cDim < dim; cDim++)
+            {
+                double l = pLows[cChild * dim + cDim];
+                double h = pHighs[cChild * dim + cDim];
+
+                int ql = (high[cDim] > low[cDim]) ? (int) Math.floor((l - low[cDim]) / (high[cDim] - low[cDim]) * max) : 0;
+                ql = Math.max(0, Math.min(max, ql));
+                while (ql > 0 && dequantize(ql, low[cDim], high[cDim], max) > l) ql--;
+
+                int qh = (high[cDim] > low[cDim]) ? (int) Math.ceil((h - low[cDim]) / (high[cDim] - low[cDim]) * max) : max;
+                qh = Math.max(0, Math.min(max, qh));
+                while (qh < max && dequantize(qh, low[cDim], high[cDim], max) < h) qh++;
+
+                if (bits == 8)
+                {
+                    ds.writeByte(ql);
+                    ds.writeByte(qh);
+                }
+                else
+                {
+                    ds.writeShort(ql);
+                    ds.writeShort(qh);
+                }
+            }
+
+            ds.writeInt(pIdentifier[cChild]);
+        }
+    }
+
+    /**
+     * 写入数据在负载存储管理器中的叶节点: 每个实体只有矩形, 编号和数据的页号, 长度固定
+     * @param ds
+     * @throws IOException
+     */
+    private void storeBlobLeaf(DataOutputStream ds) throws IOException
+    {
+        ds.writeInt(SpatialIndex.PersistentBlobLeaf);
+        ds.writeInt(level);
+        ds.writeInt(children);
+
+        for (int cChild = 0; cChild < children; cChild++)
+        {
+            if (pBlob[cChild] < 0 && pData[cChild] != null) throw new IllegalStateException("store: data has not been written to the payload storage manager.");
+
+            for (int cDim = 0; cDim < pTree.dimension; cDim++)
+            {
+                ds.writeDouble(pLows[cChild * pTree.dimension + cDim]);
+                ds.writeDouble(pHighs[cChild * pTree.dimension + cDim]);
+            }
+
+            ds.writeInt(pIdentifier[cChild]);
+            ds.writeInt(pBlob[cChild]);
+        }
+    }
+
+    // the end codes map to the reference bounds exactly, so that a child on the border never grows past it.
+    private static double dequantize(int q, double low, double high, int max)
+    {
+        if (q == 0) return low;
+        if (q == max) return high;
+        return low + (high - low) * q / max;
+    }
+
     /**
      * 将节点信息存入输出流
      * @return
@@ -849,9 +1372,34 @@ public abstract class Node implements INode {
      */
     protected byte[] store() throws IOException
     {
+        // the page is about to change, nothing may refer to it afterwards.
+        loadData();
+
+        if (level > 0 && pTree.indexQuantization > 0)
+        {
+            ByteArrayOutputStream bs = new ByteArrayOutputStream();
+            DataOutputStream ds = new DataOutputStream(bs);
+            storeQuantized(ds, pTree.indexQuantization);
+            ds.flush();
+            return bs.toByteArray();
+        }
+
         ByteArrayOutputStream bs = new ByteArrayOutputStream();
         DataOutputStream ds = new DataOutputStream(bs);
 
+        if (level == 0 && pTree.payloadStorageManager != null)
+        {
+            storeBlobLeaf(ds);
+            ds.flush();
+            return bs.toByteArray();
+        }
+
+        // the data of these entries is only in the payload storage manager, the leaf cannot be stored without it.
+        for (int cChild = 0; level == 0 && cChild < children; cChild++)
+        {
+            if (pBlob[cChild] >= 0) throw new IllegalStateException("store: the leaf refers to a payload storage manager that is not set.");
+        }
+
         int type;
         if (level == 0) type = SpatialIndex.PersistentLeaf;
         else type = SpatialIndex.PersistentIndex;
@@ -864,8 +1412,8 @@ public abstract class Node implements INode {
         {
             for (int cDim = 0; cDim < pTree.dimension; cDim++)
             {
-                ds.writeDouble(pMBR[cChild].pLow[cDim]);
-                ds.writeDouble(pMBR[cChild].pHigh[cDim]);
+                ds.writeDouble(pLows[cChild * pTree.dimension + cDim]);
+                ds.writeDouble(pHighs[cChild * pTree.dimension + cDim]);
             }
 
             ds.writeInt(pIdentifier[cChild]);
@@ -885,7 +1433,7 @@ public abstract class Node implements INode {
         byte[] data=new byte[totalDataLength];
         int destPos=0;
         for (int i=0;i<children;i++) {
-            System.arraycopy(pData[i], 0, data, destPos, pDataLength[i]);
+            System.arraycopy(getData(i), 0, data, destPos, pDataLength[i]);
             destPos+=pDataLength[i];
         }
 
@@ -902,13 +1450,13 @@ public abstract class Node implements INode {
     public List countKeyword(HashMap<String,Integer> map,Region r){
         if (this.isLeaf()){
             for (int i=0;i<children;i++){
-                Region ri=this.pMBR[i];
+                Region ri=this.getChildMBR(i);
                 if (r.contains(new Point(ri.pLow))) {
-                    String key=new String(pData[i]).split(",")[0];
+                    String key=new String(getData(i)).split(",")[0];
                     map.put(key,map.getOrDefault(key,0)+1);
                 }
                 if (r.contains(new Point(ri.pHigh))){
-                    String key=new String(pData[i]).split(",")[1];
+                    String key=new String(getData(i)).split(",")[1];
                     map.put(key,map.getOrDefault(key,0)+1);
                 }
             }
@@ -934,57 +1482,4 @@ public abstract class Node implements INode {
         });
         return list;
     }
-
-
-    class ReinsertEntry
-    {
-        int id;
-        double dist;
-        public ReinsertEntry(int id, double dist) { this.id = id; this.dist = dist; }
-    } // ReinsertEntry
-
-    class ReinsertEntryComparator implements Comparator
-    {
-        public int compare(Object o1, Object o2)
-        {
-            if (((ReinsertEntry) o1).dist < ((ReinsertEntry) o2).dist) return -1;
-            if (((ReinsertEntry) o1).dist > ((ReinsertEntry) o2).dist) return 1;
-            return 0;
-        }
-    } // ReinsertEntryComparator
-
-    class RstarSplitEntry
-    {
-        Region pRegion;
-        int id;
-        int sortDim;
-
-        RstarSplitEntry(Region r, int id, int dimension) { pRegion = r; this.id = id; sortDim = dimension; }
-    }
-
-    class RstarSplitEntryComparatorLow implements Comparator
-    {
-        public int compare(Object o1, Object o2)
-        {
-            RstarSplitEntry e1 = (RstarSplitEntry) o1;
-            RstarSplitEntry e2 = (RstarSplitEntry) o2;
-
-            if (e1.pRegion.pLow[e1.sortDim] < e2.pRegion.pLow[e2.sortDim]) return -1;
-            if (e1.pRegion.pLow[e1.sortDim] > e2.pRegion.pLow[e2.sortDim]) return 1;
-            return 0;
-        }
-    }
-
-    class RstarSplitEntryComparatorHigh implements Comparator
-    {
-        public int compare(Object o1, Object o2)
-        {
-            RstarSplitEntry e1 = (RstarSplitEntry) o1;
-            RstarSplitEntry e2 = (RstarSplitEntry) o2;
-
-            if (e1.pRegion.pHigh[e1.sortDim] < e2.pRegion.pHigh[e2.sortDim]) return -1;
-            if (e1.pRegion.pHigh[e1.sortDim] > e2.pRegion.pHigh[e2.sortDim]) return 1;
-            return 0;
-        }
-    }
 }
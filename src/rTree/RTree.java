@@ -1,11 +1,19 @@
 package rTree;
 
 import spatialIndex.*;
+import storageManager.IAtomicBatchStorageManager;
+import storageManager.IBatchStorageManager;
+import storageManager.IBuffer;
+import storageManager.ICompactableStorageManager;
+import storageManager.IPrefetchStorageManager;
 import storageManager.IStorageManager;
+import storageManager.ISyncableStorageManager;
+import storageManager.ITieredStorageManager;
 import storageManager.InvalidPageException;
 import storageManager.PropertySet;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class RTree implements ISpatialIndex {
@@ -41,14 +49,72 @@ public class RTree implements ISpatialIndex {
 
     int dimension;
 
+    int indexQuantization;
+    // Bits per coordinate of the child MBRs stored in index nodes, 0 stores them as doubles.
+    // Quantized MBRs are rounded outward inside the node MBR, so they only ever grow. Leaves stay exact.
+
     Region infiniteRegion;
 
+    int nodeCacheCapacity;
+    // Decoded nodes by page id, least recently used first. null when the cache is disabled.
+    // Cached nodes are shared by concurrent readers and never modified, writers get a copy.
+    LinkedHashMap nodeCache;
+
+    // Holds the data of the leaf entries when set, leaves then only keep the page of the data.
+    // The data is written once when the entry is first stored and deleted with the entry.
+    IStorageManager payloadStorageManager;
+
+    // The header records that the leaves keep their data in the payload storage manager, such a tree
+    // cannot be opened without it.
+    boolean payloadLeaves = false;
+
+    // Data was stored since the payload storage manager was last flushed.
+    boolean payloadsStored = false;
+
     public Statistics stats;
 
     ArrayList writeNodeCommands = new ArrayList();
     ArrayList readNodeCommands = new ArrayList();
     ArrayList deleteNodeCommands = new ArrayList();
 
+    // Scratch space of the insert path, reused by every insert instead of being allocated per insert.
+    // Inserts hold the write lock, so one set per tree is enough. Reinserts nest across levels and
+    // keep one buffer per level.
+    IntStack pathBuffer;
+    IntStack group1;
+    IntStack group2;
+    boolean[] overflowTable;
+    int[] sortOrder;
+    int[] sortOther;
+    int[] sortBuffer;
+    double[] sortKeys;
+    double[] scratchAreas;
+    boolean[] scratchMask;
+    double[] scratchLows;
+    double[] scratchHighs;
+    double[] scratchRestLows;
+    double[] scratchRestHighs;
+    Region scratchCombined;
+    Region scratchOriginal;
+    ReinsertBuffer keepBuffer;
+    ReinsertBuffer[] reinsertBuffers;
+
+    // Nodes read or written by the insert in progress. readNode hands out the same node again instead of
+    // decoding its page, and writes of existing nodes are deferred until the insert ends, so every node
+    // is stored once per insert. New nodes are written at once, they need a page id.
+    boolean deferWrites = false;
+    ArrayList insertNodes = new ArrayList();
+    ArrayList dirtyNodes = new ArrayList();
+
+    // Tree state at the start of the current batch. An aborted batch discards its pages, so the root
+    // and the counts it changed are put back as well.
+    int batchRootID;
+    long batchNodes;
+    long batchData;
+    int batchTreeHeight;
+    int batchLevels;
+    int[] batchNodesInLevel = new int[0];
+
     public RTree(PropertySet ps, IStorageManager sm)
     {
         rwLock = new RWLock();
@@ -65,6 +131,10 @@ public class RTree implements ISpatialIndex {
         splitDistributionFactor = 0.4f;
         reinsertFactor = 0.3f;
         dimension = 2;
+        indexQuantization = 0;
+        nodeCacheCapacity = 0;
+        payloadStorageManager = null;
+        nodeCache = null;
 
         infiniteRegion = new Region();
         stats = new Statistics();
@@ -98,6 +168,50 @@ public class RTree implements ISpatialIndex {
             Integer i = new Integer(headerID);
             ps.setProperty("IndexIdentifier", i);
         }
+
+        initScratch();
+    }
+
+    private void initScratch()
+    {
+        int entries = Math.max(indexCapacity, leafCapacity) + 1;
+
+        pathBuffer = new IntStack();
+        group1 = new IntStack(entries);
+        group2 = new IntStack(entries);
+        overflowTable = new boolean[0];
+        sortOrder = new int[entries];
+        sortOther = new int[entries];
+        sortBuffer = new int[entries];
+        sortKeys = new double[entries];
+        scratchAreas = new double[entries];
+        scratchMask = new boolean[entries];
+        scratchLows = new double[entries * dimension];
+        scratchHighs = new double[entries * dimension];
+        scratchRestLows = new double[entries * dimension];
+        scratchRestHighs = new double[entries * dimension];
+        scratchCombined = new Region(new double[dimension], new double[dimension]);
+        scratchOriginal = new Region(new double[dimension], new double[dimension]);
+        keepBuffer = new ReinsertBuffer(entries);
+        reinsertBuffers = new ReinsertBuffer[0];
+    }
+
+    /**
+     * 取得某一层重新插入时使用的缓冲区. 一层的重新插入过程中可能触发其他层的重新插入, 所以每层各用一个
+     * @param level
+     * @return
+     */
+    ReinsertBuffer getReinsertBuffer(int level)
+    {
+        if (level >= reinsertBuffers.length)
+        {
+            ReinsertBuffer[] b = new ReinsertBuffer[level + 1];
+            System.arraycopy(reinsertBuffers, 0, b, 0, reinsertBuffers.length);
+            reinsertBuffers = b;
+        }
+
+        if (reinsertBuffers[level] == null) reinsertBuffers[level] = new ReinsertBuffer(Math.max(indexCapacity, leafCapacity) + 1);
+        return reinsertBuffers[level];
     }
 
     /**
@@ -124,8 +238,20 @@ public class RTree implements ISpatialIndex {
                 System.arraycopy(data, 0, buffer, 0, data.length);
             }
 
-            insertData_impl(buffer, mbr, id);
-            // the buffer is stored in the tree. Do not delete here.
+            beginBatch();
+            boolean committed = false;
+
+            try
+            {
+                insertData_impl(buffer, mbr, id);
+                // the buffer is stored in the tree. Do not delete here.
+                commitBatch();
+                committed = true;
+            }
+            finally
+            {
+                if (! committed) abortBatch();
+            }
         }
         finally
         {
@@ -148,7 +274,20 @@ public class RTree implements ISpatialIndex {
         try
         {
             Region mbr = shape.getMBR();
-            return deleteData_impl(mbr, id);
+            beginBatch();
+            boolean committed = false;
+
+            try
+            {
+                boolean ret = deleteData_impl(mbr, id);
+                commitBatch();
+                committed = true;
+                return ret;
+            }
+            finally
+            {
+                if (! committed) abortBatch();
+            }
         }
         finally
         {
@@ -157,16 +296,23 @@ public class RTree implements ISpatialIndex {
     }
 
     /**
-     * 查询是否包含
+     * 查询被query包含的数据, 每个结果交给v. v实现IQueryVisitor时可以提前结束查询
      * @param query
+     * @param v
      */
-//    public void containmentQuery(final IShape query, final IVisitor v)
-    public void containmentQuery(final IShape query)
-
+    public void containmentQuery(final IShape query, final IVisitor v)
     {
         if (query.getDimension() != dimension) throw new IllegalArgumentException("containmentQuery: Shape has the wrong number of dimensions.");
-//        rangeQuery(SpatialIndex.ContainmentQuery, query, v);
-        rangeQuery(SpatialIndex.ContainmentQuery, query);
+        rangeQuery(SpatialIndex.ContainmentQuery, query, v);
+    }
+
+    /**
+     * 查询是否包含, 只统计结果个数
+     * @param query
+     */
+    public void containmentQuery(final IShape query)
+    {
+        containmentQuery(query, null);
     }
 
     public void keywordQuery(final IShape query,byte[] word){
@@ -174,16 +320,23 @@ public class RTree implements ISpatialIndex {
     }
 
     /**
-     * 查询是否交叉
+     * 查询与query相交的数据, 每个结果交给v. v实现IQueryVisitor时可以提前结束查询
      * @param query
+     * @param v
      */
-    public void intersectionQuery(final IShape query)
-    //    public void intersectionQuery(final IShape query, final IVisitor v)
+    public void intersectionQuery(final IShape query, final IVisitor v)
     {
         if (query.getDimension() != dimension) throw new IllegalArgumentException("intersectionQuery: Shape has the wrong number of dimensions.");
-//        rangeQuery(SpatialIndex.IntersectionQuery, query, v);
-        rangeQuery(SpatialIndex.IntersectionQuery, query);
+        rangeQuery(SpatialIndex.IntersectionQuery, query, v);
+    }
 
+    /**
+     * 查询是否交叉, 只统计结果个数
+     * @param query
+     */
+    public void intersectionQuery(final IShape query)
+    {
+        intersectionQuery(query, null);
     }
 
     public void pointLocationQuery(final IShape query, final IVisitor v)
@@ -203,8 +356,7 @@ public class RTree implements ISpatialIndex {
         {
             throw new IllegalArgumentException("pointLocationQuery: IShape can be Point or Region only.");
         }
-        rangeQuery(SpatialIndex.IntersectionQuery, r);
-//        rangeQuery(SpatialIndex.IntersectionQuery, r, v);
+        rangeQuery(SpatialIndex.IntersectionQuery, r, v);
     }
 
     public void nearestNeighborQuery(int k, final IShape query, final IVisitor v, final INearestNeighborComparator nnc)
@@ -220,7 +372,7 @@ public class RTree implements ISpatialIndex {
             // also sorts unique keys. Thus, I am simulating a priority queue using an ArrayList and binarySearch.
             ArrayList queue = new ArrayList();
 
-            Node n = readNode(rootID);
+            Node n = fetchNode(rootID);
             queue.add(new NNEntry(n, 0.0));
 
             int count = 0;
@@ -235,17 +387,21 @@ public class RTree implements ISpatialIndex {
                     n = (Node) first.pEntry;
 //					v.visitNode((INode) n);
 
+                    // fetch all children of an index node at once.
+                    Node[] nodes = null;
+                    if (n.level > 0) nodes = fetchNodes(n.pIdentifier, n.children);
+
                     for (int cChild = 0; cChild < n.children; cChild++)
                     {
                         IEntry e;
 
                         if (n.level == 0)
                         {
-                            e = new Data(n.pData[cChild], n.pMBR[cChild], n.pIdentifier[cChild]);
+                            e = new Data(n, cChild);
                         }
                         else
                         {
-                            e = (IEntry) readNode(n.pIdentifier[cChild]);
+                            e = (IEntry) nodes[cChild];
                         }
                         NNEntry e2 = new NNEntry(e, nnc.getMinimumDistance(query, e));
                         // Why don't I use a TreeSet here? See comment above...
@@ -259,6 +415,16 @@ public class RTree implements ISpatialIndex {
                             queue.add((-loc - 1), e2);
                         }
                     }
+
+                    // the index nodes closest to the query are expanded next, start reading their children.
+                    if (pStorageManager instanceof IPrefetchStorageManager)
+                    {
+                        for (int cIndex = 0; cIndex < Math.min(2, queue.size()); cIndex++)
+                        {
+                            Object o = ((NNEntry) queue.get(cIndex)).pEntry;
+                            if (o instanceof Node && ((Node) o).level > 0) prefetch(((Node) o).pIdentifier, ((Node) o).children);
+                        }
+                    }
                 }
                 else if(first.pEntry instanceof Data)
                 {
@@ -266,10 +432,12 @@ public class RTree implements ISpatialIndex {
                     // (neighbors can be more than k, if many happen to have the same
                     //  furthest distance).
                     if (count >= k && first.minDist > knearest) break;
+                    ((Data) first.pEntry).loadData();
                     v.visitData((IData)first.pEntry);
                     stats.queryResults++;
                     count++;
                     knearest = first.minDist;
+                    if (stopQuery(v)) break;
                 }
             }
         }
@@ -296,7 +464,7 @@ public class RTree implements ISpatialIndex {
         {
             while (true)
             {
-                Node n = readNode(next[0]);
+                Node n = fetchNode(next[0]);
                 boolean[] hasNext = new boolean[] {false};
                 qs.getNextEntry(n, next, hasNext);
                 if (hasNext[0] == false) break;
@@ -336,6 +504,9 @@ public class RTree implements ISpatialIndex {
         // reinsert factor
         pRet.setProperty("ReinsertFactor", new Double(reinsertFactor));
 
+        // index node MBR quantization
+        pRet.setProperty("IndexQuantization", new Integer(indexQuantization));
+
         return pRet;
     }
 
@@ -385,8 +556,8 @@ public class RTree implements ISpatialIndex {
 
                 for (int cChild = 0; cChild < e.pNode.children; cChild++)
                 {
-                    tmpRegion.pLow[cDim] = Math.min(tmpRegion.pLow[cDim], e.pNode.pMBR[cChild].pLow[cDim]);
-                    tmpRegion.pHigh[cDim] = Math.max(tmpRegion.pHigh[cDim], e.pNode.pMBR[cChild].pHigh[cDim]);
+                    tmpRegion.pLow[cDim] = Math.min(tmpRegion.pLow[cDim], e.pNode.pLows[cChild * dimension + cDim]);
+                    tmpRegion.pHigh[cDim] = Math.max(tmpRegion.pHigh[cDim], e.pNode.pHighs[cChild * dimension + cDim]);
                 }
             }
 
@@ -405,7 +576,7 @@ public class RTree implements ISpatialIndex {
             {
                 for (int cChild = 0; cChild < e.pNode.children; cChild++)
                 {
-                    ValidateEntry tmpEntry = new ValidateEntry(e.pNode.pMBR[cChild], readNode(e.pNode.pIdentifier[cChild]));
+                    ValidateEntry tmpEntry = new ValidateEntry(e.pNode.getChildMBR(cChild), readNode(e.pNode.pIdentifier[cChild]));
 
                     if (! nodesInLevel.containsKey(new Integer(tmpEntry.pNode.level)))
                     {
@@ -455,6 +626,7 @@ public class RTree implements ISpatialIndex {
         try
         {
             storeHeader();
+            if (payloadStorageManager != null) flushPayloads();
             pStorageManager.flush();
         }
         catch (IOException e)
@@ -464,6 +636,92 @@ public class RTree implements ISpatialIndex {
         }
     }
 
+    /**
+     * 按广度优先的顺序重新排列节点所在的页面，然后截短数据文件。每批节点在写锁下移动，批次之间查询可以继续。
+     * 映射的数据文件按段映射，只能截短到最后一个仍在使用的段的末尾
+     * @param batchSize 每批移动的节点个数
+     */
+    public void compact(int batchSize)
+    {
+        if (! (pStorageManager instanceof ICompactableStorageManager)) throw new IllegalStateException("compact: the storage manager cannot relocate pages.");
+        if (batchSize <= 0) throw new IllegalArgumentException("compact: batchSize must be > 0.");
+
+        ICompactableStorageManager sm = (ICompactableStorageManager) pStorageManager;
+        int[] order = new int[64];
+        int count = 0;
+
+        rwLock.readLock();
+
+        try
+        {
+            // the header first, then the nodes level by level. leaves are not read, their parents list them.
+            order[count++] = headerID;
+            order[count++] = rootID;
+
+            int levelStart = 1;
+            int levelEnd = 2;
+            int level = fetchNode(rootID).level;
+
+            while (level > 0)
+            {
+                for (int cIndex = levelStart; cIndex < levelEnd; cIndex++)
+                {
+                    Node n = fetchNode(order[cIndex]);
+
+                    if (count + n.children > order.length) order = Arrays.copyOf(order, Math.max(count + n.children, 2 * order.length));
+
+                    for (int cChild = 0; cChild < n.children; cChild++) order[count++] = n.pIdentifier[cChild];
+                }
+
+                levelStart = levelEnd;
+                levelEnd = count;
+                level--;
+            }
+        }
+        finally
+        {
+            rwLock.readUnlock();
+        }
+
+        // the tree can change between two batches. deleted nodes are skipped, new ones are moved by truncate.
+        int target = 0;
+
+        for (int from = 0; from < count; from += batchSize)
+        {
+            rwLock.writeLock();
+
+            try
+            {
+                target = sm.relocate(order, from, Math.min(count, from + batchSize), target);
+
+                // cached nodes may still refer to the pages that were moved.
+                clearNodeCache();
+            }
+            finally
+            {
+                rwLock.writeUnlock();
+            }
+        }
+
+        rwLock.writeLock();
+
+        try
+        {
+            storeHeader();
+            sm.truncate(target);
+            clearNodeCache();
+        }
+        catch (IOException e)
+        {
+            System.err.println(e);
+            throw new IllegalStateException("compact failed with IOException");
+        }
+        finally
+        {
+            rwLock.writeUnlock();
+        }
+    }
+
     private void initNew(PropertySet ps) throws IOException
     {
         Object var;
@@ -601,6 +859,47 @@ public class RTree implements ISpatialIndex {
             }
         }
 
+        // index node MBR quantization.
+        var = ps.getProperty("IndexQuantization");
+        if (var != null)
+        {
+            if (var instanceof Integer)
+            {
+                int i = ((Integer) var).intValue();
+                if (i != 0 && i != 8 && i != 16)
+                    throw new IllegalArgumentException("Property IndexQuantization must be 0, 8 or 16");
+                indexQuantization = i;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Property IndexQuantization must be an Integer");
+            }
+        }
+
+        // decoded node cache capacity, in nodes.
+        var = ps.getProperty("NodeCacheCapacity");
+        if (var != null)
+        {
+            if (var instanceof Integer)
+            {
+                int i = ((Integer) var).intValue();
+                if (i < 0) throw new IllegalArgumentException("Property NodeCacheCapacity must be >= 0");
+                nodeCacheCapacity = i;
+                nodeCache = (i > 0) ? new LinkedHashMap(16, 0.75f, true) : null;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Property NodeCacheCapacity must be an Integer");
+            }
+        }
+
+        var = ps.getProperty("PayloadStorageManager");
+        if (var != null)
+        {
+            if (! (var instanceof IStorageManager)) throw new IllegalArgumentException("Property PayloadStorageManager must be an IStorageManager");
+            payloadStorageManager = (IStorageManager) var;
+        }
+
         infiniteRegion.pLow = new double[dimension];
         infiniteRegion.pHigh = new double[dimension];
 
@@ -696,6 +995,49 @@ public class RTree implements ISpatialIndex {
             }
         }
 
+        // index node MBR quantization.
+        var = ps.getProperty("IndexQuantization");
+        if (var != null)
+        {
+            if (var instanceof Integer)
+            {
+                int i = ((Integer) var).intValue();
+                if (i != 0 && i != 8 && i != 16)
+                    throw new IllegalArgumentException("Property IndexQuantization must be 0, 8 or 16");
+                indexQuantization = i;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Property IndexQuantization must be an Integer");
+            }
+        }
+
+        // decoded node cache capacity, in nodes.
+        var = ps.getProperty("NodeCacheCapacity");
+        if (var != null)
+        {
+            if (var instanceof Integer)
+            {
+                int i = ((Integer) var).intValue();
+                if (i < 0) throw new IllegalArgumentException("Property NodeCacheCapacity must be >= 0");
+                nodeCacheCapacity = i;
+                nodeCache = (i > 0) ? new LinkedHashMap(16, 0.75f, true) : null;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Property NodeCacheCapacity must be an Integer");
+            }
+        }
+
+        var = ps.getProperty("PayloadStorageManager");
+        if (var != null)
+        {
+            if (! (var instanceof IStorageManager)) throw new IllegalArgumentException("Property PayloadStorageManager must be an IStorageManager");
+            payloadStorageManager = (IStorageManager) var;
+        }
+
+        if (payloadLeaves && payloadStorageManager == null) throw new IllegalArgumentException("Property PayloadStorageManager was not specified, the leaves keep their data in it.");
+
         infiniteRegion.pLow = new double[dimension];
         infiniteRegion.pHigh = new double[dimension];
 
@@ -706,6 +1048,71 @@ public class RTree implements ISpatialIndex {
         }
     }
 
+    private void beginBatch()
+    {
+        if (! (pStorageManager instanceof IBatchStorageManager)) return;
+
+        batchRootID = rootID;
+        batchNodes = stats.nodes;
+        batchData = stats.data;
+        batchTreeHeight = stats.treeHeight;
+
+        payloadsStored = false;
+        batchLevels = stats.nodesInLevel.size();
+        if (batchNodesInLevel.length < batchLevels) batchNodesInLevel = new int[batchLevels];
+        for (int cLevel = 0; cLevel < batchLevels; cLevel++) batchNodesInLevel[cLevel] = ((Integer) stats.nodesInLevel.get(cLevel)).intValue();
+
+        ((IBatchStorageManager) pStorageManager).beginBatch();
+    }
+
+    /**
+     * 修改失败时放弃批次, 并恢复批次开始时的根节点与统计. 缓存的节点可能包含没有写出的修改, 一并清空
+     */
+    private void abortBatch()
+    {
+        clearNodeCache();
+        if (! (pStorageManager instanceof IBatchStorageManager)) return;
+
+        ((IBatchStorageManager) pStorageManager).abortBatch();
+
+        rootID = batchRootID;
+        stats.nodes = batchNodes;
+        stats.data = batchData;
+        stats.treeHeight = batchTreeHeight;
+
+        stats.nodesInLevel.clear();
+        for (int cLevel = 0; cLevel < batchLevels; cLevel++) stats.nodesInLevel.add(new Integer(batchNodesInLevel[cLevel]));
+    }
+
+    /**
+     * 提交一次修改. 批次是原子的时候头信息随批次一起写入, 否则批次只用于合并写入, 头信息在flush时写入
+     */
+    private void commitBatch()
+    {
+        if (! (pStorageManager instanceof IBatchStorageManager)) return;
+
+        if (! (pStorageManager instanceof IAtomicBatchStorageManager))
+        {
+            ((IBatchStorageManager) pStorageManager).commitBatch();
+            return;
+        }
+
+        // the data has to be durable before the leaves referring to it are.
+        if (payloadsStored) flushPayloads();
+
+        try
+        {
+            storeHeader();
+        }
+        catch (IOException e)
+        {
+            System.err.println(e);
+            throw new IllegalStateException("commitBatch failed with IOException");
+        }
+
+        ((IBatchStorageManager) pStorageManager).commitBatch();
+    }
+
     private void storeHeader() throws IOException
     {
         ByteArrayOutputStream bs = new ByteArrayOutputStream();
@@ -729,6 +1136,9 @@ public class RTree implements ISpatialIndex {
             ds.writeInt(((Integer) stats.nodesInLevel.get(cLevel)).intValue());
         }
 
+        ds.writeInt(indexQuantization);
+        ds.writeInt((payloadStorageManager != null) ? 1 : 0);
+
         ds.flush();
         headerID = pStorageManager.storeByteArray(headerID, bs.toByteArray());
     }
@@ -755,6 +1165,10 @@ public class RTree implements ISpatialIndex {
         {
             stats.nodesInLevel.add(new Integer(ds.readInt()));
         }
+
+        // older headers end here.
+        if (ds.available() >= 4) indexQuantization = ds.readInt();
+        if (ds.available() >= 4) payloadLeaves = (ds.readInt() != 0);
     }
 
     /**
@@ -767,30 +1181,64 @@ public class RTree implements ISpatialIndex {
     {
 //		assert mbr.getDimension() == (int)m_dimension;
 
-        boolean[] overflowTable;
+        pathBuffer.clear();
+        deferWrites = true;
 
-        Stack pathBuffer = new Stack();
+        try
+        {
+            Node root = readNode(rootID);
 
-        Node root = readNode(rootID);
+            if (overflowTable.length < root.level + 1) overflowTable = new boolean[root.level + 1];
+            Arrays.fill(overflowTable, false);
 
-        overflowTable = new boolean[root.level];
-        for (int cLevel = 0; cLevel < root.level; cLevel++) overflowTable[cLevel] = false;
+            Node l = root.chooseSubtree(mbr, 0, pathBuffer);
+            l.insertData(pData, -1, mbr, id, pathBuffer, overflowTable);
 
-        Node l = root.chooseSubtree(mbr, 0, pathBuffer);
-        l.insertData(pData, mbr, id, pathBuffer, overflowTable);
+            for (int cIndex = 0; cIndex < dirtyNodes.size(); cIndex++) storeNode((Node) dirtyNodes.get(cIndex));
+        }
+        finally
+        {
+            deferWrites = false;
+            insertNodes.clear();
+            dirtyNodes.clear();
+        }
 
         stats.data++;
     }
 
-    protected void insertData_impl(byte[] pData, Region mbr, int id, int level, boolean[] overflowTable)
+    /**
+     * 在节点列表中查找页号为id的节点
+     * @param nodes
+     * @param id
+     * @return 下标, 没有时为-1
+     */
+    private static int indexOfNode(ArrayList nodes, int id)
+    {
+        for (int cIndex = 0; cIndex < nodes.size(); cIndex++)
+        {
+            if (((Node) nodes.get(cIndex)).identifier == id) return cIndex;
+        }
+        return -1;
+    }
+
+    // a split replaces a node by a new object with the same id, the latest one is kept.
+    private static void keepNode(ArrayList nodes, Node n)
+    {
+        int i = indexOfNode(nodes, n.identifier);
+        if (i >= 0) nodes.set(i, n);
+        else nodes.add(n);
+    }
+
+    protected void insertData_impl(byte[] pData, int blob, Region mbr, int id, int level, boolean[] overflowTable)
     {
 //		assert mbr.getDimension() == m_dimension;
 
-        Stack pathBuffer = new Stack();
+        // the path of the insert that triggered this reinsert is not used any more, the buffer can be reused.
+        pathBuffer.clear();
 
         Node root = readNode(rootID);
         Node n = root.chooseSubtree(mbr, level, pathBuffer);
-        n.insertData(pData, mbr, id, pathBuffer, overflowTable);
+        n.insertData(pData, blob, mbr, id, pathBuffer, overflowTable);
     }
 
     /**
@@ -805,7 +1253,7 @@ public class RTree implements ISpatialIndex {
 
         boolean bRet = false;
 
-        Stack pathBuffer = new Stack();
+        IntStack pathBuffer = new IntStack();
 
         Node root = readNode(rootID);
         Leaf l = root.findLeaf(mbr, id, pathBuffer);
@@ -821,9 +1269,25 @@ public class RTree implements ISpatialIndex {
     }
 
     protected int writeNode(Node n) throws IllegalStateException
+    {
+        if (deferWrites && n.identifier >= 0)
+        {
+            keepNode(insertNodes, n);
+            keepNode(dirtyNodes, n);
+            return n.identifier;
+        }
+
+        int page = storeNode(n);
+        if (deferWrites) keepNode(insertNodes, n);
+        return page;
+    }
+
+    private int storeNode(Node n) throws IllegalStateException
     {
         byte[] buffer = null;
 
+        if (n.level == 0 && payloadStorageManager != null) storePayloads(n);
+
         try
         {
             buffer = n.store();
@@ -840,7 +1304,11 @@ public class RTree implements ISpatialIndex {
 
         try
         {
-            page = pStorageManager.storeByteArray(page, buffer);
+            // index nodes go to the memory tier of a tiered storage manager, leaves stay on the disk.
+            if (pStorageManager instanceof ITieredStorageManager)
+                page = ((ITieredStorageManager) pStorageManager).storeByteArray(page, buffer, (n.level > 0) ? ITieredStorageManager.MemoryTier : ITieredStorageManager.DiskTier);
+            else
+                page = pStorageManager.storeByteArray(page, buffer);
         }
         catch (InvalidPageException e)
         {
@@ -858,6 +1326,23 @@ public class RTree implements ISpatialIndex {
 
         stats.writes++;
 
+        // the cached node is replaced by a snapshot of the one just written. quantized nodes read back
+        // differently from how they were written, so they are dropped instead.
+        if (nodeCache != null)
+        {
+            if (n.level > 0 && indexQuantization > 0)
+            {
+                synchronized (nodeCache)
+                {
+                    nodeCache.remove(new Integer(page));
+                }
+            }
+            else
+            {
+                cacheNode(n.copy());
+            }
+        }
+
         for (int cIndex = 0; cIndex < writeNodeCommands.size(); cIndex++)
         {
             ((INodeCommand) writeNodeCommands.get(cIndex)).execute(n);
@@ -866,50 +1351,356 @@ public class RTree implements ISpatialIndex {
         return page;
     }
 
+    /**
+     * 读取一个节点, 调用者可以修改返回的节点
+     * @param id
+     * @return
+     */
     public Node readNode(int id)
     {
-        byte[] buffer;
-        DataInputStream ds = null;
-        int nodeType = -1;
-        Node n = null;
+        if (deferWrites)
+        {
+            // the insert in progress already has this node, possibly changed and not yet stored.
+            int i = indexOfNode(insertNodes, id);
+            if (i >= 0) return (Node) insertNodes.get(i);
+        }
 
-        try
+        Node n = fetchNode(id);
+
+        // cached nodes are shared, the caller gets its own copy.
+        if (nodeCache != null) n = n.copy();
+
+        if (deferWrites) insertNodes.add(n);
+        return n;
+    }
+
+    /**
+     * 预读节点所在的页面, 已经在解码节点缓存中的节点不再预读
+     * @param ids
+     * @param count
+     */
+    private void prefetch(int[] ids, int count)
+    {
+        if (! (pStorageManager instanceof IPrefetchStorageManager)) return;
+
+        if (nodeCache != null)
         {
-            buffer = pStorageManager.loadByteArray(id);
-            ds = new DataInputStream(new ByteArrayInputStream(buffer));
-            nodeType = ds.readInt();
+            // the ids may belong to a node, the uncached ones are copied.
+            int[] uncached = new int[count];
+            int cCount = 0;
 
-            if (nodeType == SpatialIndex.PersistentIndex) n = new Index(this, -1, 0);
-            else if (nodeType == SpatialIndex.PersistentLeaf) n = new Leaf(this, -1);
-            else throw new IllegalStateException("readNode failed reading the correct node type information");
+            synchronized (nodeCache)
+            {
+                for (int cIndex = 0; cIndex < count; cIndex++)
+                {
+                    if (! nodeCache.containsKey(new Integer(ids[cIndex]))) uncached[cCount++] = ids[cIndex];
+                }
+            }
 
-            n.pTree = this;
-            n.identifier = id;
-            n.load(buffer);
+            ids = uncached;
+            count = cCount;
+        }
+
+        if (count > 0) ((IPrefetchStorageManager) pStorageManager).prefetch(ids, count);
+    }
+
+    /**
+     * 读取一个节点, 先查找解码节点缓存. 返回的节点可能被其他读者共享, 不能修改
+     * @param id
+     * @return
+     */
+    private Node fetchNode(int id)
+    {
+        if (nodeCache != null)
+        {
+            Node n;
+
+            synchronized (nodeCache)
+            {
+                n = (Node) nodeCache.get(new Integer(id));
+                if (n != null) stats.nodeCacheHits++;
+                else stats.nodeCacheMisses++;
+            }
 
-            stats.reads++;
+            if (n != null)
+            {
+                nodeRead(n);
+                return n;
+            }
+        }
+
+        ByteBuffer buffer;
+
+        try
+        {
+            if (pStorageManager instanceof IBuffer)
+            {
+                IBuffer b = (IBuffer) pStorageManager;
+                long hits = b.getThreadHits();
+                buffer = b.loadByteBuffer(id);
+                if (b.getThreadHits() > hits) stats.hits++;
+                else stats.misses++;
+            }
+            else
+            {
+                buffer = pStorageManager.loadByteBuffer(id);
+            }
         }
         catch (InvalidPageException e)
         {
             System.err.println(e);
             throw new IllegalStateException("readNode failed with InvalidPageException");
         }
-        catch (IOException e)
+
+        Node n = decodeNode(id, buffer);
+        cacheNode(n);
+        return n;
+    }
+
+    /**
+     * 一次读取多个节点，存储管理器可以合并相邻页面的读取
+     * @param ids
+     * @param count ids中有效的个数
+     * @return
+     */
+    public Node[] readNodes(int[] ids, int count)
+    {
+        Node[] ret = fetchNodes(ids, count);
+
+        if (nodeCache != null)
+        {
+            for (int cIndex = 0; cIndex < ret.length; cIndex++) ret[cIndex] = ret[cIndex].copy();
+        }
+
+        return ret;
+    }
+
+    /**
+     * 一次读取多个节点, 只有不在解码节点缓存中的节点才从存储管理器读取. 返回的节点不能修改
+     * @param ids
+     * @param count ids中有效的个数
+     * @return
+     */
+    private Node[] fetchNodes(int[] ids, int count)
+    {
+        Node[] ret = new Node[count];
+
+        if (nodeCache != null)
+        {
+            int[] missing = new int[count];
+            int missingCount = 0;
+
+            synchronized (nodeCache)
+            {
+                for (int cIndex = 0; cIndex < count; cIndex++)
+                {
+                    ret[cIndex] = (Node) nodeCache.get(new Integer(ids[cIndex]));
+
+                    if (ret[cIndex] != null)
+                    {
+                        stats.nodeCacheHits++;
+                    }
+                    else
+                    {
+                        stats.nodeCacheMisses++;
+                        missing[missingCount++] = ids[cIndex];
+                    }
+                }
+            }
+
+            for (int cIndex = 0; cIndex < count; cIndex++)
+            {
+                if (ret[cIndex] != null) nodeRead(ret[cIndex]);
+            }
+
+            if (missingCount == 0) return ret;
+
+            Node[] loaded = loadNodes(missing, missingCount);
+
+            for (int cIndex = 0, cLoaded = 0; cIndex < count; cIndex++)
+            {
+                if (ret[cIndex] == null) ret[cIndex] = loaded[cLoaded++];
+            }
+
+            return ret;
+        }
+
+        return loadNodes(ids, count);
+    }
+
+    private Node[] loadNodes(int[] ids, int count)
+    {
+        if (count < ids.length)
+        {
+            int[] tmp = new int[count];
+            System.arraycopy(ids, 0, tmp, 0, count);
+            ids = tmp;
+        }
+
+        byte[][] buffers;
+
+        try
+        {
+            if (pStorageManager instanceof IBuffer)
+            {
+                IBuffer b = (IBuffer) pStorageManager;
+                long hits = b.getThreadHits();
+                buffers = b.loadByteArrays(ids);
+                long h = b.getThreadHits() - hits;
+                stats.hits += h;
+                stats.misses += ids.length - h;
+            }
+            else
+            {
+                buffers = pStorageManager.loadByteArrays(ids);
+            }
+        }
+        catch (InvalidPageException e)
         {
             System.err.println(e);
-            throw new IllegalStateException("readNode failed with IOException");
+            throw new IllegalStateException("readNodes failed with InvalidPageException");
+        }
+
+        Node[] ret = new Node[ids.length];
+        for (int cIndex = 0; cIndex < ids.length; cIndex++)
+        {
+            ret[cIndex] = decodeNode(ids[cIndex], ByteBuffer.wrap(buffers[cIndex]));
+            cacheNode(ret[cIndex]);
+        }
+        return ret;
+    }
+
+    private void cacheNode(Node n)
+    {
+        if (nodeCache == null) return;
+
+        synchronized (nodeCache)
+        {
+            nodeCache.put(new Integer(n.identifier), n);
+
+            // evict least recently used nodes.
+            Iterator it = nodeCache.entrySet().iterator();
+
+            while (nodeCache.size() > nodeCacheCapacity && it.hasNext())
+            {
+                it.next();
+                it.remove();
+            }
         }
+    }
+
+    private void clearNodeCache()
+    {
+        if (nodeCache == null) return;
+
+        synchronized (nodeCache)
+        {
+            nodeCache.clear();
+        }
+    }
+
+    private void nodeRead(Node n)
+    {
+        stats.reads++;
 
         for (int cIndex = 0; cIndex < readNodeCommands.size(); cIndex++)
         {
             ((INodeCommand) readNodeCommands.get(cIndex)).execute(n);
         }
+    }
+
+    /**
+     * 把叶节点中还没有页号的数据写入负载存储管理器, 已写入的数据不再重写
+     * @param n
+     */
+    private void storePayloads(Node n)
+    {
+        for (int cChild = 0; cChild < n.children; cChild++)
+        {
+            if (n.pBlob[cChild] >= 0) continue;
+
+            byte[] data = n.getData(cChild);
+            if (data == null) continue;
+
+            n.pBlob[cChild] = payloadStorageManager.storeByteArray(IStorageManager.NewPage, data);
+            payloadsStored = true;
+        }
+    }
+
+    /**
+     * 写出负载存储. 索引的批次是原子的时候, 叶子在提交后就是持久的, 它们指向的数据必须先同步到磁盘
+     */
+    private void flushPayloads()
+    {
+        if (pStorageManager instanceof IAtomicBatchStorageManager && payloadStorageManager instanceof ISyncableStorageManager)
+            ((ISyncableStorageManager) payloadStorageManager).sync();
+        else
+            payloadStorageManager.flush();
+
+        payloadsStored = false;
+    }
+
+    protected void deletePayload(int blob)
+    {
+        try
+        {
+            payloadStorageManager.deleteByteArray(blob);
+        }
+        catch (InvalidPageException e)
+        {
+            System.err.println(e);
+            throw new IllegalStateException("deletePayload failed with InvalidPageException");
+        }
+    }
+
+    private Node decodeNode(int id, ByteBuffer buffer)
+    {
+        int nodeType = buffer.getInt(buffer.position());
+        Node n = null;
+
+        if (nodeType == SpatialIndex.PersistentIndex || nodeType == SpatialIndex.PersistentQuantizedIndex) n = new Index(this, -1, 0);
+        else if (nodeType == SpatialIndex.PersistentLeaf || nodeType == SpatialIndex.PersistentBlobLeaf) n = new Leaf(this, -1);
+        else throw new IllegalStateException("readNode failed reading the correct node type information");
+
+        n.pTree = this;
+        n.identifier = id;
+
+        try
+        {
+            n.load(buffer);
+        }
+        catch (IOException e)
+        {
+            System.err.println(e);
+            throw new IllegalStateException("readNode failed with IOException");
+        }
+
+        nodeRead(n);
 
         return n;
     }
 
     protected void deleteNode(Node n)
     {
+        // the callers still use the data of the node after its page is gone.
+        n.loadData();
+
+        if (deferWrites)
+        {
+            int i = indexOfNode(insertNodes, n.identifier);
+            if (i >= 0) insertNodes.remove(i);
+            i = indexOfNode(dirtyNodes, n.identifier);
+            if (i >= 0) dirtyNodes.remove(i);
+        }
+
+        if (nodeCache != null)
+        {
+            synchronized (nodeCache)
+            {
+                nodeCache.remove(new Integer(n.identifier));
+            }
+        }
+
         try
         {
             pStorageManager.deleteByteArray(n.identifier);
@@ -930,16 +1721,21 @@ public class RTree implements ISpatialIndex {
         }
     }
 
-//    private void rangeQuery(int type, final IShape query, final IVisitor v)
-    private void rangeQuery(int type,final IShape query)
+    /**
+     * 范围查询. 结果通过同一个Data交给v, 下一个结果会覆盖它, 只有访问者调用getData或getShape时才复制. v为null时只统计结果个数
+     * @param type
+     * @param query
+     * @param v
+     */
+    private void rangeQuery(int type, final IShape query, final IVisitor v)
     {
         rwLock.readLock();
 
         try
         {
             Stack st = new Stack();
-            Node root = readNode(rootID);
-
+            Node root = fetchNode(rootID);
+            Data data = (v != null) ? new Data() : null;
 
             if (root.children > 0 && query.intersects(root.nodeMBR)) st.push(root);
 
@@ -947,34 +1743,62 @@ public class RTree implements ISpatialIndex {
             {
                 Node n = (Node) st.pop();
 
-                if (n.level == 0)
+                if (v != null)
                 {
-//                    v.visitNode((INode) n);
+                    v.visitNode((INode) n);
+                    if (stopQuery(v)) return;
+                }
 
+                if (n.level == 0)
+                {
                     for (int cChild = 0; cChild < n.children; cChild++)
                     {
                         boolean b;
-                        if (type == SpatialIndex.ContainmentQuery) b = query.contains(n.pMBR[cChild]);
-                        else b = query.intersects(n.pMBR[cChild]);
+                        if (type == SpatialIndex.ContainmentQuery) b = n.childContainedBy(cChild, query);
+                        else b = n.childIntersects(cChild, query);
 
                         if (b)
                         {
-//							Data data = new Data(n.m_pData[cChild], n.m_pMBR[cChild], n.m_pIdentifier[cChild]);
-//							v.visitData(data);
                             stats.queryResults++;
+
+                            if (v != null)
+                            {
+                                data.set(n, cChild);
+                                v.visitData(data);
+                                if (stopQuery(v)) return;
+                            }
                         }
                     }
                 }
                 else
                 {
-//                    v.visitNode((INode) n);
+                    int[] ids = new int[n.children];
+                    int count = 0;
 
                     for (int cChild = 0; cChild < n.children; cChild++)
                     {
-                        if (query.intersects(n.pMBR[cChild]))
+                        if (n.childIntersects(cChild, query)) ids[count++] = n.pIdentifier[cChild];
+                    }
+
+                    // fetch all qualifying children at once.
+                    Node[] nodes = fetchNodes(ids, count);
+                    for (int cIndex = 0; cIndex < count; cIndex++) st.push(nodes[cIndex]);
+
+                    // start reading the qualifying grandchildren while the children are tested.
+                    if (pStorageManager instanceof IPrefetchStorageManager && n.level > 1)
+                    {
+                        for (int cIndex = 0; cIndex < count; cIndex++)
                         {
-                            st.push(readNode(n.pIdentifier[cChild]));
-                            System.out.println("in "+n.pMBR[cChild].toString());
+                            Node c = nodes[cIndex];
+                            int[] grandchildren = new int[c.children];
+                            int cCount = 0;
+
+                            for (int cChild = 0; cChild < c.children; cChild++)
+                            {
+                                if (c.childIntersects(cChild, query)) grandchildren[cCount++] = c.pIdentifier[cChild];
+                            }
+
+                            prefetch(grandchildren, cCount);
                         }
                     }
                 }
@@ -1007,6 +1831,57 @@ public class RTree implements ISpatialIndex {
     }
 
 
+    /**
+     * 重新插入或压缩节点时暂存实体: 数据, 负载页号, 编号与矩形
+     */
+    class ReinsertBuffer
+    {
+        byte[][] data;
+        int[] blobs;
+        int[] ids;
+        double[] lows;
+        double[] highs;
+        Region mbr;
+
+        ReinsertBuffer(int entries)
+        {
+            data = new byte[entries][];
+            blobs = new int[entries];
+            ids = new int[entries];
+            lows = new double[entries * dimension];
+            highs = new double[entries * dimension];
+            mbr = new Region(new double[dimension], new double[dimension]);
+        }
+
+        void copyFrom(int slot, Node n, int index)
+        {
+            data[slot] = n.pData[index];
+            blobs[slot] = n.pBlob[index];
+            ids[slot] = n.pIdentifier[index];
+            System.arraycopy(n.pLows, index * dimension, lows, slot * dimension, dimension);
+            System.arraycopy(n.pHighs, index * dimension, highs, slot * dimension, dimension);
+        }
+
+        void copyTo(int slot, Node n, int index)
+        {
+            n.pData[index] = data[slot];
+            n.pDataLength[index] = (data[slot] != null) ? data[slot].length : 0;
+            n.pBlob[index] = blobs[slot];
+            n.pIdentifier[index] = ids[slot];
+            System.arraycopy(lows, slot * dimension, n.pLows, index * dimension, dimension);
+            System.arraycopy(highs, slot * dimension, n.pHighs, index * dimension, dimension);
+            data[slot] = null;
+        }
+
+        // the region is shared by all slots, insertData only copies it.
+        Region getMBR(int slot)
+        {
+            System.arraycopy(lows, slot * dimension, mbr.pLow, 0, dimension);
+            System.arraycopy(highs, slot * dimension, mbr.pHigh, 0, dimension);
+            return mbr;
+        }
+    }
+
     class NNEntry
     {
         IEntry pEntry;
@@ -1045,21 +1920,64 @@ public class RTree implements ISpatialIndex {
         ValidateEntry(Region r, Node pNode) { parentMBR = r; pNode = pNode; }
     }
 
+    // IQueryVisitor can stop a query after every visit.
+    private boolean stopQuery(IVisitor v)
+    {
+        return (v instanceof IQueryVisitor) && ! ((IQueryVisitor) v).continueQuery();
+    }
+
     class Data implements IData
     {
         int id;
         Region shape;
         byte[] pData;
 
+        Node pNode;
+        int index;
+
         Data(byte[] pData, Region mbr, int id) { this.id = id; shape = mbr; this.pData = pData; }
 
+        // the data is taken from the node only when the entry is reported.
+        Data(Node n, int index) { this.id = n.pIdentifier[index]; shape = n.getChildMBR(index); pNode = n; this.index = index; }
+
+        // a reusable entry for range queries, see set.
+        Data() { shape = new Region(new double[dimension], new double[dimension]); }
+
+        // points the entry at another child of a node, the data stays in the node until it is asked for.
+        void set(Node n, int index)
+        {
+            this.id = n.pIdentifier[index];
+            n.getChildMBR(index, shape);
+            pNode = n;
+            this.index = index;
+            pData = null;
+        }
+
+        void loadData()
+        {
+            if (pNode == null) return;
+            pData = pNode.getData(index);
+            pNode = null;
+        }
+
         public int getIdentifier() { return id; }
         public IShape getShape() { return new Region(shape); }
         public byte[] getData()
         {
+            loadData();
+            if (this.pData == null) return null;
+
             byte[] data = new byte[this.pData.length];
             System.arraycopy(this.pData, 0, data, 0, this.pData.length);
             return data;
         }
+
+        public ByteBuffer getDataView()
+        {
+            if (pNode != null) return pNode.getDataView(index);
+            return (this.pData != null) ? ByteBuffer.wrap(this.pData).asReadOnlyBuffer() : null;
+        }
+
+        public IShape getShapeView() { return shape; }
     }
 }
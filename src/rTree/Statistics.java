@@ -10,6 +10,8 @@ public class Statistics implements IStatistics,Cloneable {
     protected long splits;
     protected long hits;
     protected long misses;
+    protected long nodeCacheHits;
+    protected long nodeCacheMisses;
     protected long nodes;
     protected long adjustments;
     protected long queryResults;
@@ -29,6 +31,8 @@ public class Statistics implements IStatistics,Cloneable {
         splits = s.splits;
         hits   = s.hits;
         misses = s.misses;
+        nodeCacheHits = s.nodeCacheHits;
+        nodeCacheMisses = s.nodeCacheMisses;
         nodes  = s.nodes;
         adjustments = s.adjustments;
         queryResults = s.queryResults;
@@ -72,6 +76,16 @@ public class Statistics implements IStatistics,Cloneable {
         return misses;
     }
 
+    public long getNodeCacheHits()
+    {
+        return nodeCacheHits;
+    }
+
+    public long getNodeCacheMisses()
+    {
+        return nodeCacheMisses;
+    }
+
     public long getAdjustments()
     {
         return adjustments;
@@ -99,6 +113,8 @@ public class Statistics implements IStatistics,Cloneable {
         splits = 0;
         hits   = 0;
         misses = 0;
+        nodeCacheHits = 0;
+        nodeCacheMisses = 0;
         nodes  = 0;
         adjustments = 0;
         queryResults = 0;
@@ -113,6 +129,8 @@ public class Statistics implements IStatistics,Cloneable {
                 "Writes: " + writes + "\n" +
                 "Hits: " + hits + "\n" +
                 "Misses: " + misses + "\n" +
+                "Node cache hits: " + nodeCacheHits + "\n" +
+                "Node cache misses: " + nodeCacheMisses + "\n" +
                 "Tree height: " + treeHeight + "\n" +
                 "Number of data: " + data + "\n" +
                 "Number of nodes: " + nodes + "\n";
@@ -3,6 +3,8 @@ package spatialIndex;
 import spatialIndex.IData;
 import spatialIndex.IShape;
 
+import java.nio.ByteBuffer;
+
 public class DataBlock implements IData {
     protected byte[] data;
     public byte[] getData(){
@@ -18,4 +20,14 @@ public class DataBlock implements IData {
     public IShape getShape() {
         return null;
     }
+
+    @Override
+    public ByteBuffer getDataView() {
+        return (this.data != null) ? ByteBuffer.wrap(this.data).asReadOnlyBuffer() : null;
+    }
+
+    @Override
+    public IShape getShapeView() {
+        return null;
+    }
 }
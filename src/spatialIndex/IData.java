@@ -1,5 +1,10 @@
 package spatialIndex;
 
+import java.nio.ByteBuffer;
+
 public interface IData extends IEntry{
     public byte[] getData();
+    // views without copies, only valid during visitData and read only.
+    public ByteBuffer getDataView();
+    public IShape getShapeView();
 }
@@ -0,0 +1,8 @@
+package spatialIndex;
+
+/**
+ * 可以提前结束查询的访问者, 每次visitNode或visitData之后查询都会调用continueQuery, 返回false时停止遍历
+ */
+public interface IQueryVisitor extends IVisitor {
+    public boolean continueQuery();
+}
@@ -5,4 +5,6 @@ public interface IStatistics {
     public long getWrites();
     public long getNumberOfNodes();
     public long getNumberOfData();
+    public long getNodeCacheHits();
+    public long getNodeCacheMisses();
 }
@@ -14,6 +14,8 @@ public class SpatialIndex {
 
     public static final int PersistentIndex = 1;
     public static final int PersistentLeaf = 2;
+    public static final int PersistentQuantizedIndex = 3;
+    public static final int PersistentBlobLeaf = 4;
 
     public static final int ContainmentQuery = 1;
     public static final int IntersectionQuery = 2;
@@ -25,7 +27,14 @@ public class SpatialIndex {
 
     public static IStorageManager createMemoryStorageManager(PropertySet ps)
     {
-        IStorageManager sm = (IStorageManager) new MemoryStorageManager();
+        IStorageManager sm = (IStorageManager) new MemoryStorageManager(ps);
+        return sm;
+    }
+
+    public static IStorageManager createOffHeapMemoryStorageManager(PropertySet ps)
+            throws IllegalArgumentException
+    {
+        IStorageManager sm = (IStorageManager) new OffHeapMemoryStorageManager(ps);
         return sm;
     }
 
@@ -35,4 +44,39 @@ public class SpatialIndex {
         IStorageManager sm = (IStorageManager) new DiskStorageManager(ps);
         return sm;
     }
+
+    public static IStorageManager createMappedDiskStorageManager(PropertySet ps)
+            throws SecurityException, NullPointerException, IOException, FileNotFoundException, IllegalArgumentException
+    {
+        IStorageManager sm = (IStorageManager) new MappedDiskStorageManager(ps);
+        return sm;
+    }
+
+    public static IStorageManager createBufferedStorageManager(IStorageManager sm, PropertySet ps)
+            throws IllegalArgumentException
+    {
+        IBuffer b = (IBuffer) new BufferedStorageManager(sm, ps);
+        return b;
+    }
+
+    public static IStorageManager createWriteAheadLogStorageManager(IStorageManager sm, PropertySet ps)
+            throws SecurityException, NullPointerException, IOException, FileNotFoundException, IllegalArgumentException
+    {
+        IStorageManager wal = (IStorageManager) new WriteAheadLogStorageManager(sm, ps);
+        return wal;
+    }
+
+    public static IStorageManager createPrefetchingStorageManager(IStorageManager sm, PropertySet ps)
+            throws IllegalArgumentException
+    {
+        IStorageManager p = (IStorageManager) new PrefetchingStorageManager(sm, ps);
+        return p;
+    }
+
+    public static IStorageManager createTieredStorageManager(IStorageManager sm, PropertySet ps)
+            throws IllegalArgumentException
+    {
+        IStorageManager t = (IStorageManager) new TieredStorageManager(sm, ps);
+        return t;
+    }
 }
@@ -0,0 +1,275 @@
+package storageManager;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class BufferedStorageManager implements IBuffer, ICompactableStorageManager, ISyncableStorageManager {
+    private IStorageManager pStorageManager = null;
+    private long capacity = 4 * 1024 * 1024;
+    private boolean writeThrough = false;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    // hits per thread, so that a caller can count the hits of its own loads.
+    private ThreadLocal threadHits = new ThreadLocal()
+    {
+        protected Object initialValue()
+        {
+            return new long[1];
+        }
+    };
+
+    // access ordered, the eldest entry is the least recently used one.
+    private LinkedHashMap buffer = new LinkedHashMap(16, 0.75f, true);
+
+    public BufferedStorageManager(IStorageManager sm, PropertySet ps) throws IllegalArgumentException
+    {
+        if (sm == null) throw new IllegalArgumentException("Storage manager cannot be null");
+
+        this.pStorageManager = sm;
+
+        Object var;
+
+        // buffer capacity in bytes.
+        var = ps.getProperty("BufferCapacity");
+
+        if (var != null)
+        {
+            if (var instanceof Integer) this.capacity = ((Integer) var).intValue();
+            else if (var instanceof Long) this.capacity = ((Long) var).longValue();
+            else throw new IllegalArgumentException("Property BufferCapacity must be an Integer or a Long");
+
+            if (this.capacity <= 0) throw new IllegalArgumentException("Property BufferCapacity must be > 0");
+        }
+
+        // write through flag.
+        var = ps.getProperty("WriteThrough");
+
+        if (var != null)
+        {
+            if (! (var instanceof Boolean)) throw new IllegalArgumentException("Property WriteThrough must be a Boolean");
+            this.writeThrough = ((Boolean) var).booleanValue();
+        }
+    }
+
+    public synchronized void flush()
+    {
+        Iterator it = this.buffer.entrySet().iterator();
+
+        while (it.hasNext())
+        {
+            Map.Entry me = (Map.Entry) it.next();
+            Entry e = (Entry) me.getValue();
+
+            if (e.bDirty)
+            {
+                int id = ((Integer) me.getKey()).intValue();
+                this.pStorageManager.storeByteArray(id, e.pData);
+                e.bDirty = false;
+            }
+        }
+
+        this.pStorageManager.flush();
+    }
+
+    public synchronized void sync()
+    {
+        flush();
+        if (this.pStorageManager instanceof ISyncableStorageManager) ((ISyncableStorageManager) this.pStorageManager).sync();
+    }
+
+    public synchronized byte[] loadByteArray(final int id)
+    {
+        Entry e = (Entry) this.buffer.get(new Integer(id));
+        byte[] ret;
+
+        if (e != null)
+        {
+            hit();
+        }
+        else
+        {
+            this.misses++;
+            e = new Entry(this.pStorageManager.loadByteArray(id), false);
+            addEntry(id, e);
+        }
+
+        ret = new byte[e.pData.length];
+        System.arraycopy(e.pData, 0, ret, 0, e.pData.length);
+        return ret;
+    }
+
+    public synchronized ByteBuffer loadByteBuffer(final int id)
+    {
+        Entry e = (Entry) this.buffer.get(new Integer(id));
+
+        if (e != null)
+        {
+            hit();
+        }
+        else
+        {
+            this.misses++;
+            e = new Entry(this.pStorageManager.loadByteArray(id), false);
+            addEntry(id, e);
+        }
+
+        // buffered arrays are replaced, never modified, so they can be shared.
+        return ByteBuffer.wrap(e.pData).asReadOnlyBuffer();
+    }
+
+    public synchronized byte[][] loadByteArrays(final int[] ids)
+    {
+        byte[][] ret = new byte[ids.length][];
+        int[] missing = new int[ids.length];
+        int count = 0;
+
+        for (int cIndex = 0; cIndex < ids.length; cIndex++)
+        {
+            Entry e = (Entry) this.buffer.get(new Integer(ids[cIndex]));
+
+            if (e != null)
+            {
+                hit();
+                ret[cIndex] = new byte[e.pData.length];
+                System.arraycopy(e.pData, 0, ret[cIndex], 0, e.pData.length);
+            }
+            else
+            {
+                this.misses++;
+                missing[count++] = cIndex;
+            }
+        }
+
+        if (count == 0) return ret;
+
+        // everything that is not buffered is fetched from the underlying storage manager in one call.
+        int[] missingIds = new int[count];
+        for (int cIndex = 0; cIndex < count; cIndex++) missingIds[cIndex] = ids[missing[cIndex]];
+
+        byte[][] data = this.pStorageManager.loadByteArrays(missingIds);
+
+        for (int cIndex = 0; cIndex < count; cIndex++)
+        {
+            ret[missing[cIndex]] = data[cIndex];
+
+            byte[] copy = new byte[data[cIndex].length];
+            System.arraycopy(data[cIndex], 0, copy, 0, copy.length);
+            addEntry(missingIds[cIndex], new Entry(copy, false));
+        }
+
+        return ret;
+    }
+
+    public synchronized int storeByteArray(final int id, final byte[] data)
+    {
+        byte[] copy = new byte[data.length];
+        System.arraycopy(data, 0, copy, 0, data.length);
+
+        int ret = id;
+
+        if (id == NewPage || this.writeThrough || data.length > this.capacity)
+        {
+            // new pages need an identifier from the underlying storage manager anyway.
+            ret = this.pStorageManager.storeByteArray(id, copy);
+            addEntry(ret, new Entry(copy, false));
+        }
+        else
+        {
+            addEntry(ret, new Entry(copy, true));
+        }
+
+        return ret;
+    }
+
+    public synchronized void deleteByteArray(final int id)
+    {
+        Entry e = (Entry) this.buffer.remove(new Integer(id));
+        if (e != null) this.size -= e.pData.length;
+
+        this.pStorageManager.deleteByteArray(id);
+    }
+
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    public long getThreadHits()
+    {
+        return ((long[]) this.threadHits.get())[0];
+    }
+
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    public synchronized int relocate(final int[] ids, final int from, final int to, final int target)
+    {
+        // relocation keeps the identifiers, buffered pages stay valid.
+        if (! (this.pStorageManager instanceof ICompactableStorageManager)) throw new IllegalStateException("Storage manager cannot relocate pages.");
+        return ((ICompactableStorageManager) this.pStorageManager).relocate(ids, from, to, target);
+    }
+
+    public synchronized void truncate(final int target)
+    {
+        if (! (this.pStorageManager instanceof ICompactableStorageManager)) throw new IllegalStateException("Storage manager cannot relocate pages.");
+        ((ICompactableStorageManager) this.pStorageManager).truncate(target);
+    }
+
+    public synchronized void clear()
+    {
+        flush();
+        this.buffer.clear();
+        this.size = 0;
+    }
+
+    private void hit()
+    {
+        this.hits++;
+        ((long[]) this.threadHits.get())[0]++;
+    }
+
+    private void addEntry(int id, Entry e)
+    {
+        Entry old = (Entry) this.buffer.put(new Integer(id), e);
+        if (old != null) this.size -= old.pData.length;
+
+        if (e.pData.length > this.capacity)
+        {
+            // pages larger than the whole buffer are never kept.
+            this.buffer.remove(new Integer(id));
+            return;
+        }
+
+        this.size += e.pData.length;
+
+        // evict least recently used pages until the byte budget is met.
+        Iterator it = this.buffer.entrySet().iterator();
+
+        while (this.size > this.capacity && it.hasNext())
+        {
+            Map.Entry me = (Map.Entry) it.next();
+            Entry victim = (Entry) me.getValue();
+
+            if (victim.bDirty) this.pStorageManager.storeByteArray(((Integer) me.getKey()).intValue(), victim.pData);
+
+            this.size -= victim.pData.length;
+            it.remove();
+        }
+    }
+
+    class Entry
+    {
+        byte[] pData;
+        boolean bDirty;
+
+        Entry(final byte[] d, boolean bDirty)
+        {
+            this.pData = d;
+            this.bDirty = bDirty;
+        }
+    } // Entry
+}
@@ -0,0 +1,113 @@
+package storageManager;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class DeflatePageCodec implements IPageCodec {
+    public static final String Name = "Deflate";
+
+    private static final byte Stored = 0;
+    private static final byte Deflated = 1;
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    public DeflatePageCodec()
+    {
+    }
+
+    public DeflatePageCodec(int level)
+    {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Compression level must be in [-1, 9]");
+
+        this.level = level;
+    }
+
+    public String getName()
+    {
+        return Name;
+    }
+
+    /**
+     * 压缩数据，格式为一个字节的标志、原始长度和压缩后的数据。压缩没有效果时保存原始数据
+     * @param data
+     * @return
+     */
+    public byte[] encode(final byte[] data)
+    {
+        byte[] buffer = new byte[5 + data.length];
+        Deflater d = new Deflater(this.level);
+
+        try
+        {
+            d.setInput(data);
+            d.finish();
+
+            int len = d.deflate(buffer, 5, data.length);
+
+            if (d.finished() && len < data.length)
+            {
+                buffer[0] = Deflated;
+                putInt(buffer, 1, data.length);
+
+                byte[] ret = new byte[5 + len];
+                System.arraycopy(buffer, 0, ret, 0, ret.length);
+                return ret;
+            }
+        }
+        finally
+        {
+            d.end();
+        }
+
+        byte[] ret = new byte[1 + data.length];
+        ret[0] = Stored;
+        System.arraycopy(data, 0, ret, 1, data.length);
+        return ret;
+    }
+
+    public byte[] decode(final byte[] data)
+    {
+        if (data.length == 0) throw new IllegalStateException("Corrupted data file.");
+
+        if (data[0] == Stored)
+        {
+            byte[] ret = new byte[data.length - 1];
+            System.arraycopy(data, 1, ret, 0, ret.length);
+            return ret;
+        }
+
+        byte[] ret = new byte[getInt(data, 1)];
+        Inflater i = new Inflater();
+
+        try
+        {
+            i.setInput(data, 5, data.length - 5);
+            if (i.inflate(ret) != ret.length) throw new IllegalStateException("Corrupted data file.");
+        }
+        catch (DataFormatException ex)
+        {
+            throw new IllegalStateException("Corrupted data file.");
+        }
+        finally
+        {
+            i.end();
+        }
+
+        return ret;
+    }
+
+    private static void putInt(byte[] b, int off, int v)
+    {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static int getInt(byte[] b, int off)
+    {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+}
@@ -1,16 +1,62 @@
 package storageManager;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.zip.CRC32;
+
+public class DiskStorageManager implements IBatchStorageManager, ICompactableStorageManager, ISyncableStorageManager{
+    private static final byte JournalStore = 1;
+    private static final byte JournalDelete = 2;
+    private static final byte JournalCommit = 3;
+    private static final byte JournalStoreChecked = 4;
 
-public class DiskStorageManager implements IStorageManager{
     private RandomAccessFile dataFile = null;
-    private RandomAccessFile indexFile = null;
+    private FileChannel dataChannel = null;
+    private File indexPath = null;
+    private File journalPath = null;
+    private File oldJournalPath = null;
+    private RandomAccessFile journalFile = null;
+    private long journalThreshold = 4 * 1024 * 1024;
+    private Thread checkpointThread = null;
     private int pageSize = 0;
+    private IPageCodec codec = null;
     private int nextPage = -1;
-    private TreeSet emptyPages = new TreeSet();
-    private HashMap pageIndex = new HashMap();
-    private byte[] buffer = null;
+    private int journalNextPage = -1;
+
+    // page table, indexed by id. lengths is -1 for unused ids. every id occupies the extent of pages that
+    // begins at its start page, unless its pages are scattered (written by older versions), then they are
+    // listed in scattered. page lists are never modified after they are put in the table.
+    private int[] lengths = new int[0];
+    private int[] starts = new int[0];
+    private int[][] scattered = new int[0][];
+
+    // CRC32 of the stored bytes of every id. entries written before checksums existed are unchecked.
+    private int[] checksums = new int[0];
+    private BitSet unchecked = new BitSet();
+    private boolean verifyChecksums = true;
+
+    // owner of every page, built for compaction only. it can be stale, owners are verified before use.
+    private int[] pageOwners = null;
+    private int nextId = 0;
+
+    private BitSet emptyIds = new BitSet();
+    private BitSet emptyPages = new BitSet();
+    private BitSet dirtyPages = new BitSet();
+
+    // data of the entries stored during the current batch, written to the file on commit.
+    private boolean bInBatch = false;
+    private HashMap batchWrites = new HashMap();
+
+    // page table entries as they were before the current batch changed them, put back when the batch
+    // is aborted. length, start, checksum, unchecked and dirty, followed by the pages of scattered entries.
+    private HashMap batchUndo = new HashMap();
+    private int batchNextPage = 0;
+    private int batchNextId = 0;
+    private byte[] padding = null;
 
     public DiskStorageManager(PropertySet ps)
             throws SecurityException, NullPointerException, IOException, FileNotFoundException, IllegalArgumentException
@@ -27,6 +73,24 @@ public class DiskStorageManager implements IStorageManager{
             bOverwrite = ((Boolean) var).booleanValue();
         }
 
+        // journal size that triggers a checkpoint of the page index.
+        var = ps.getProperty("JournalThreshold");
+
+        if (var != null)
+        {
+            if (! (var instanceof Integer)) throw new IllegalArgumentException("Property JournalThreshold must be an Integer");
+            this.journalThreshold = ((Integer) var).intValue();
+        }
+
+        // checksum verification on load.
+        var = ps.getProperty("VerifyChecksums");
+
+        if (var != null)
+        {
+            if (! (var instanceof Boolean)) throw new IllegalArgumentException("Property VerifyChecksums must be a Boolean");
+            this.verifyChecksums = ((Boolean) var).booleanValue();
+        }
+
         // storage filename.
         var = ps.getProperty("FileName");
 
@@ -36,15 +100,20 @@ public class DiskStorageManager implements IStorageManager{
 
             File indexFile = new File((String) var + ".idx");
             File dataFile = new File((String) var + ".dat");
-//            flush();
+            this.indexPath = indexFile;
+            this.journalPath = new File((String) var + ".jnl");
+            this.oldJournalPath = new File((String) var + ".jnl.old");
+
             // check if files exist.
-            if (bOverwrite == false)// && (! indexFile.exists() || ! dataFile.exists()))
+            if (bOverwrite == false && (! indexFile.exists() || ! dataFile.exists()))
                 bOverwrite = true;
 
             if (bOverwrite)
             {
                 if (indexFile.exists()) indexFile.delete();
                 if (dataFile.exists()) dataFile.delete();
+                if (this.journalPath.exists()) this.journalPath.delete();
+                if (this.oldJournalPath.exists()) this.oldJournalPath.delete();
 
                 boolean b = indexFile.createNewFile();
                 if (b == false) throw new IOException("Index file cannot be opened.");
@@ -53,8 +122,8 @@ public class DiskStorageManager implements IStorageManager{
                 if (b == false) throw new IOException("Data file cannot be opened.");
             }
 
-            this.indexFile = new RandomAccessFile(indexFile, "rw");
             this.dataFile = new RandomAccessFile(dataFile, "rw");
+            this.dataChannel = this.dataFile.getChannel();
         }
         else
         {
@@ -76,118 +145,166 @@ public class DiskStorageManager implements IStorageManager{
             {
                 throw new IllegalArgumentException("Property PageSize was not specified.");
             }
+
+            // page codec, recorded in the index file.
+            var = ps.getProperty("PageCodec");
+
+            if (var instanceof IPageCodec) this.codec = (IPageCodec) var;
+            else if (var instanceof String) this.codec = createCodec((String) var);
+            else if (var != null) throw new IllegalArgumentException("Property PageCodec must be a String or an IPageCodec");
+
+            // an empty checkpoint, so that the files can be reopened even if nothing is ever flushed.
+            writeCheckpoint(this.nextPage, this.emptyPages, this.lengths, this.starts, this.scattered, this.checksums, this.unchecked);
         }
         else
         {
-            try
-            {
-                this.pageSize = this.indexFile.readInt();
-            }
-            catch (EOFException ex)
-            {
-                throw new IllegalStateException("Failed reading pageSize.");
-            }
+            String name = loadCheckpoint();
 
-            try
-            {
-                this.nextPage = this.indexFile.readInt();
-            }
-            catch (EOFException ex)
-            {
-                throw new IllegalStateException("Failed reading nextPage.");
-            }
-        }
+            // the codec of the file wins. an explicit property has to agree with it.
+            var = ps.getProperty("PageCodec");
 
-        // create buffer.
-        this.buffer = new byte[this.pageSize];
+            if (var instanceof IPageCodec && ((IPageCodec) var).getName().equals(name)) this.codec = (IPageCodec) var;
+            else if (var != null && ! (var instanceof String && ((String) var).equals(name)))
+                throw new IllegalArgumentException("Property PageCodec does not match the data file");
+            else if (name.length() > 0) this.codec = createCodec(name);
 
-        if (bOverwrite == false)
-        {
-            int count, id, page;
+            // replay changes that were flushed after the last checkpoint.
+            boolean bReplayed = false;
 
-            // load empty pages in memory.
-            try
+            if (this.oldJournalPath.exists())
             {
-                count = this.indexFile.readInt();
+                RandomAccessFile f = new RandomAccessFile(this.oldJournalPath, "rw");
+                bReplayed |= replayJournal(f);
+                f.close();
+            }
 
-                for (int cCount = 0; cCount < count; cCount++)
-                {
-                    page = this.indexFile.readInt();
-                    this.emptyPages.add(new Integer(page));
-                }
+            if (this.journalPath.exists())
+            {
+                RandomAccessFile f = new RandomAccessFile(this.journalPath, "rw");
+                bReplayed |= replayJournal(f);
+                f.close();
+            }
 
-                // load index table in memory.
-                count = this.indexFile.readInt();
+            if (bReplayed)
+            {
+                // every page below nextPage that no entry uses is empty.
+                this.emptyPages.clear();
+                this.emptyPages.set(0, this.nextPage);
 
-                for (int cCount = 0; cCount < count; cCount++)
+                for (int cId = 0; cId < this.lengths.length; cId++)
                 {
-                    Entry e = new Entry();
-
-                    id = this.indexFile.readInt();
-                    e.length = this.indexFile.readInt();
-
-                    int count2 = indexFile.readInt();
+                    if (this.lengths[cId] < 0) continue;
 
-                    for (int cCount2 = 0; cCount2 < count2; cCount2++)
+                    if (this.scattered[cId] == null)
                     {
-                        page = indexFile.readInt();
-                        e.pages.add(new Integer(page));
+                        this.emptyPages.clear(this.starts[cId], this.starts[cId] + pageCount(this.lengths[cId]));
+                    }
+                    else
+                    {
+                        for (int cIndex = 0; cIndex < this.scattered[cId].length; cIndex++) this.emptyPages.clear(this.scattered[cId][cIndex]);
                     }
-                    this.pageIndex.put(new Integer(id), e);
                 }
             }
-            catch (EOFException ex)
+
+            // identifiers are reused lowest first, so the unused ones below the largest are all that is needed.
+            for (int cId = 0; cId < this.lengths.length; cId++)
             {
-                throw new IllegalStateException("Corrupted index file.");
+                if (this.lengths[cId] >= 0) this.nextId = cId + 1;
+            }
+
+            for (int cId = 0; cId < this.nextId; cId++)
+            {
+                if (this.lengths[cId] < 0) this.emptyIds.set(cId);
+            }
+
+            if (this.oldJournalPath.exists())
+            {
+                // a checkpoint was interrupted. finish it before accepting new changes.
+                writeCheckpoint(this.nextPage, this.emptyPages, this.lengths, this.starts, this.scattered, this.checksums, this.unchecked);
+                this.journalPath.delete();
+                this.oldJournalPath.delete();
             }
         }
+
+        this.journalFile = new RandomAccessFile(this.journalPath, "rw");
+        this.journalFile.seek(this.journalFile.length());
+        this.journalNextPage = this.nextPage;
     }
 
+    /**
+     * 将上次flush以来修改过的页表项追加到日志文件，日志过大时在后台线程中写出新的检查点
+     */
     public void flush()
     {
+        // the journal must not refer to data that is not in the file yet.
+        writeBatch();
+
         try
         {
-            this.indexFile.seek(0l);
-
-            this.indexFile.writeInt(this.pageSize);
-            this.indexFile.writeInt(this.nextPage);
+            if (! this.dirtyPages.isEmpty() || this.nextPage != this.journalNextPage)
+            {
+                ByteArrayOutputStream bs = new ByteArrayOutputStream();
+                DataOutputStream ds = new DataOutputStream(bs);
 
-            int id, page;
-            int count = this.emptyPages.size();
+                for (int id = this.dirtyPages.nextSetBit(0); id >= 0; id = this.dirtyPages.nextSetBit(id + 1))
+                {
+                    if (id >= this.lengths.length || this.lengths[id] < 0)
+                    {
+                        ds.writeByte(JournalDelete);
+                        ds.writeInt(id);
+                    }
+                    else
+                    {
+                        if (this.unchecked.get(id))
+                        {
+                            ds.writeByte(JournalStore);
+                            ds.writeInt(id);
+                            ds.writeInt(this.lengths[id]);
+                        }
+                        else
+                        {
+                            ds.writeByte(JournalStoreChecked);
+                            ds.writeInt(id);
+                            ds.writeInt(this.lengths[id]);
+                            ds.writeInt(this.checksums[id]);
+                        }
+                        writePageList(ds, this.lengths[id], this.starts[id], this.scattered[id]);
+                    }
+                }
 
-            this.indexFile.writeInt(count);
+                ds.writeByte(JournalCommit);
+                ds.writeInt(this.nextPage);
+                ds.flush();
 
-            Iterator it = this.emptyPages.iterator();
-            while (it.hasNext())
-            {
-                page = ((Integer) it.next()).intValue();
-                this.indexFile.writeInt(page);
+                this.journalFile.write(bs.toByteArray());
+                this.dirtyPages.clear();
+                this.journalNextPage = this.nextPage;
             }
 
-            count = this.pageIndex.size();
-            this.indexFile.writeInt(count);
-
-            it = this.pageIndex.entrySet().iterator();
-
-            while (it.hasNext())
+            if (this.journalFile.length() > this.journalThreshold && ! isCheckpointRunning())
             {
-                Map.Entry me = (Map.Entry) it.next();
-                id = ((Integer) me.getKey()).intValue();
-                this.indexFile.writeInt(id);
-
-                Entry e = (Entry) me.getValue();
-                count = e.length;
-                this.indexFile.writeInt(count);
+                startCheckpoint();
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted index file.");
+        }
+    }
 
-                count = e.pages.size();
-                this.indexFile.writeInt(count);
+    /**
+     * flush并把数据文件与日志文件强制写入磁盘. flush本身不同步, 进程崩溃不会丢失数据, 断电可能丢失
+     */
+    public void sync()
+    {
+        // the data first, so that the journal never reaches the disk before the data it refers to.
+        writeBatch();
+        forceData();
+        flush();
 
-                for (int cIndex = 0; cIndex < count; cIndex++)
-                {
-                    page = ((Integer) e.pages.get(cIndex)).intValue();
-                    this.indexFile.writeInt(page);
-                }
-            }
+        try
+        {
+            this.journalFile.getFD().sync();
         }
         catch (IOException ex)
         {
@@ -197,32 +314,58 @@ public class DiskStorageManager implements IStorageManager{
 
     public byte[] loadByteArray(final int id)
     {
-        Entry e = (Entry) this.pageIndex.get(new Integer(id));
-        if (e == null) throw new InvalidPageException(id);
+        byte[] data = loadStored(id);
+        return (this.codec == null) ? data : this.codec.decode(data);
+    }
+
+    /**
+     * 读取页表中记录的数据，使用页面编码时是编码后的数据
+     * @param id
+     * @return
+     */
+    private byte[] loadStored(final int id)
+    {
+        if (id < 0 || id >= this.lengths.length || this.lengths[id] < 0) throw new InvalidPageException(id);
 
-        int cNext = 0;
-        int cTotal = e.pages.size();
+        if (this.bInBatch)
+        {
+            byte[] pending = (byte[]) this.batchWrites.get(new Integer(id));
+
+            if (pending != null)
+            {
+                byte[] ret = new byte[pending.length];
+                System.arraycopy(pending, 0, ret, 0, pending.length);
+                return ret;
+            }
+        }
+
+        byte[] data = readEntry(id);
+        verify(id, data);
+        return data;
+    }
+
+    private byte[] readEntry(final int id)
+    {
+        byte[] data = new byte[this.lengths[id]];
+        int[] p = this.scattered[id];
+
+        // the whole extent in one read.
+        if (p == null)
+        {
+            readPages(this.starts[id], data, 0, data.length);
+            return data;
+        }
 
-        byte[] data = new byte[e.length];
+        int cNext = 0;
+        int cTotal = p.length;
         int cIndex = 0;
         int cLen;
-        int cRem = e.length;
+        int cRem = data.length;
 
         do
         {
-            try
-            {
-                this.dataFile.seek(((Integer) e.pages.get(cNext)).intValue() * this.pageSize);
-                int bytesread = this.dataFile.read(this.buffer);
-                if (bytesread != this.pageSize) throw new IllegalStateException("Corrupted data file.");
-            }
-            catch (IOException ex)
-            {
-                throw new IllegalStateException("Corrupted data file.");
-            }
-
             cLen = (cRem > this.pageSize) ? this.pageSize : cRem;
-            System.arraycopy(this.buffer, 0, data, cIndex, cLen);
+            readPages(p[cNext], data, cIndex, cLen);
 
             cIndex += cLen;
             cRem -= cLen;
@@ -233,143 +376,1257 @@ public class DiskStorageManager implements IStorageManager{
         return data;
     }
 
-    public int storeByteArray(final int id, final byte[] data)
+    public ByteBuffer loadByteBuffer(final int id)
     {
-        if (id == NewPage)
+        if (id < 0 || id >= this.lengths.length || this.lengths[id] < 0) throw new InvalidPageException(id);
+
+        if (this.codec != null || this.scattered[id] != null || (this.bInBatch && this.batchWrites.containsKey(new Integer(id))))
         {
-            Entry e = new Entry();
-            e.length = data.length;
+            return ByteBuffer.wrap(loadByteArray(id)).asReadOnlyBuffer();
+        }
 
-            int cIndex = 0;
-            int cPage;
-            int cRem = data.length;
-            int cLen;
+        ByteBuffer b = viewPages(this.starts[id], this.lengths[id]);
 
-            while (cRem > 0)
-            {
-                if (! this.emptyPages.isEmpty())
-                {
-                    Integer i = (Integer) this.emptyPages.first();
-                    this.emptyPages.remove(i);
-                    cPage = i.intValue();
-                }
-                else
-                {
-                    cPage = this.nextPage;
-                    this.nextPage++;
-                }
+        if (this.verifyChecksums && ! this.unchecked.get(id))
+        {
+            CRC32 crc = new CRC32();
+            crc.update(b.duplicate());
+            if ((int) crc.getValue() != this.checksums[id]) throw new IllegalStateException("Corrupted data file, page " + id + " failed its checksum.");
+        }
 
-                cLen = (cRem > this.pageSize) ? this.pageSize : cRem;
-                System.arraycopy(data, cIndex, this.buffer, 0, cLen);
+        return b;
+    }
 
-                try
-                {
-                    this.dataFile.seek(cPage * this.pageSize);
-                    this.dataFile.write(this.buffer);
-                }
-                catch (IOException ex)
-                {
-                    throw new IllegalStateException("Corrupted data file.");
-                }
+    /**
+     * 按起始页面排序要读取的区间，相邻的区间合并为一次读取
+     * @param ids
+     * @return
+     */
+    public byte[][] loadByteArrays(final int[] ids)
+    {
+        byte[][] ret = new byte[ids.length][];
 
-                cIndex += cLen;
-                cRem -= cLen;
-                e.pages.add(new Integer(cPage));
-            }
+        // extents sorted by start page, positions in ids in the low bits.
+        long[] keys = new long[ids.length];
+        int count = 0;
 
-            Integer i = (Integer) e.pages.get(0);
-            this.pageIndex.put(i, e);
+        for (int cIndex = 0; cIndex < ids.length; cIndex++)
+        {
+            int id = ids[cIndex];
+            if (id < 0 || id >= this.lengths.length || this.lengths[id] < 0) throw new InvalidPageException(id);
 
-            return i.intValue();
+            if (this.scattered[id] != null || (this.bInBatch && this.batchWrites.containsKey(new Integer(id))))
+            {
+                ret[cIndex] = loadStored(id);
+            }
+            else
+            {
+                keys[count++] = ((long) this.starts[id] << 32) | cIndex;
+            }
         }
-        else
-        {
-            // find the entry.
-            Entry oldEntry = (Entry) this.pageIndex.get(new Integer(id));
-            if (oldEntry == null) throw new InvalidPageException(id);
 
-            this.pageIndex.remove(new Integer(id));
+        Arrays.sort(keys, 0, count);
 
-            Entry e = new Entry();
-            e.length = data.length;
+        int cKey = 0;
 
-            int cIndex = 0;
-            int cPage;
-            int cRem = data.length;
-            int cLen, cNext = 0;
+        while (cKey < count)
+        {
+            int first = cKey;
+            int start = (int) (keys[cKey] >>> 32);
+            int last = start;
+            int next = start + pageCount(this.lengths[ids[(int) keys[cKey]]]);
+            cKey++;
 
-            while (cRem > 0)
+            while (cKey < count && (int) (keys[cKey] >>> 32) == next)
             {
-                if (cNext < oldEntry.pages.size())
-                {
-                    cPage = ((Integer) oldEntry.pages.get(cNext)).intValue();
-                    cNext++;
-                }
-                else if (! this.emptyPages.isEmpty())
-                {
-                    Integer i = (Integer) this.emptyPages.first();
-                    this.emptyPages.remove(i);
-                    cPage = i.intValue();
-                }
-                else
-                {
-                    cPage = this.nextPage;
-                    this.nextPage++;
-                }
+                last = next;
+                next += pageCount(this.lengths[ids[(int) keys[cKey]]]);
+                cKey++;
+            }
 
-                cLen = (cRem > this.pageSize) ? this.pageSize : cRem;
-                System.arraycopy(data, cIndex, this.buffer, 0, cLen);
+            if (cKey - first == 1)
+            {
+                int i = (int) keys[first];
+                ret[i] = new byte[this.lengths[ids[i]]];
+                readPages(start, ret[i], 0, ret[i].length);
+                verify(ids[i], ret[i]);
+                continue;
+            }
 
-                try
-                {
-                    this.dataFile.seek(cPage * this.pageSize);
-                    this.dataFile.write(this.buffer);
-                }
-                catch (IOException ex)
-                {
-                    throw new IllegalStateException("Corrupted data file.");
-                }
+            // the last extent may end in a partial page at the end of the file, so read up to its last byte only.
+            byte[] run = new byte[(last - start) * this.pageSize + this.lengths[ids[(int) keys[cKey - 1]]]];
+            readPages(start, run, 0, run.length);
 
-                cIndex += cLen;
-                cRem -= cLen;
-                e.pages.add(new Integer(cPage));
+            for (int cRun = first; cRun < cKey; cRun++)
+            {
+                int i = (int) keys[cRun];
+                ret[i] = new byte[this.lengths[ids[i]]];
+                System.arraycopy(run, ((int) (keys[cRun] >>> 32) - start) * this.pageSize, ret[i], 0, ret[i].length);
+                verify(ids[i], ret[i]);
             }
+        }
+
+        if (this.codec != null)
+        {
+            for (int cIndex = 0; cIndex < ret.length; cIndex++) ret[cIndex] = this.codec.decode(ret[cIndex]);
+        }
+
+        return ret;
+    }
+
+    public int storeByteArray(final int id, final byte[] data)
+    {
+        // the page table records the encoded length.
+        byte[] stored = (this.codec == null) ? data : this.codec.encode(data);
+
+        int count = pageCount(stored.length);
+        int ret = id;
+        int start;
+
+        if (id == NewPage)
+        {
+            ret = allocateId();
+            if (this.bInBatch) remember(ret);
+            start = allocateExtent(count);
+        }
+        else
+        {
+            // find the entry.
+            if (id < 0 || id >= this.lengths.length || this.lengths[id] < 0) throw new InvalidPageException(id);
+            if (this.bInBatch) remember(id);
 
-            while (cNext < oldEntry.pages.size())
+            int oldCount = pageCount(this.lengths[id]);
+            start = this.starts[id];
+
+            if (this.scattered[id] == null && count <= oldCount)
+            {
+                // shrink in place.
+                this.emptyPages.set(start + count, start + oldCount);
+            }
+            else if (this.scattered[id] == null && isExtentFree(start + oldCount, start + count))
+            {
+                // grow in place.
+                this.emptyPages.clear(start + oldCount, start + count);
+                this.nextPage = Math.max(this.nextPage, start + count);
+            }
+            else
             {
-                this.emptyPages.add(oldEntry.pages.get(cNext));
-                cNext++;
+                // move the whole entry to a new extent.
+                freePages(id);
+                this.scattered[id] = null;
+                start = allocateExtent(count);
             }
+        }
 
-            Integer i = (Integer) e.pages.get(0);
-            this.pageIndex.put(i, e);
+        if (this.bInBatch)
+        {
+            if (stored == data)
+            {
+                stored = new byte[data.length];
+                System.arraycopy(data, 0, stored, 0, data.length);
+            }
 
-            return i.intValue();
+            this.batchWrites.put(new Integer(ret), stored);
+        }
+        else
+        {
+            writePages(start, stored, 0, stored.length);
         }
+
+        ensureCapacity(ret + 1);
+        this.lengths[ret] = stored.length;
+        this.checksums[ret] = checksum(stored, 0, stored.length);
+        this.unchecked.clear(ret);
+        this.starts[ret] = start;
+        this.dirtyPages.set(ret);
+
+        return ret;
     }
 
     public void deleteByteArray(final int id)
     {
         // find the entry.
-        Entry e = (Entry) this.pageIndex.get(new Integer(id));
-        if (e == null) throw new InvalidPageException(id);
+        if (id < 0 || id >= this.lengths.length || this.lengths[id] < 0) throw new InvalidPageException(id);
+        if (this.bInBatch) remember(id);
+
+        freePages(id);
+        this.lengths[id] = -1;
+        this.scattered[id] = null;
+        this.emptyIds.set(id);
+        this.dirtyPages.set(id);
+
+        if (this.bInBatch) this.batchWrites.remove(new Integer(id));
+    }
+
+    /**
+     * 开始一个批次，之后写入的数据暂存在内存中，提交时按页面顺序合并写出
+     */
+    public void beginBatch()
+    {
+        if (this.bInBatch) throw new IllegalStateException("beginBatch: a batch is already open.");
+        this.bInBatch = true;
+        this.batchNextPage = this.nextPage;
+        this.batchNextId = this.nextId;
+    }
+
+    /**
+     * 放弃批次中还没有写出的数据, 并把批次修改过的页表项恢复原状
+     */
+    public void abortBatch()
+    {
+        if (! this.bInBatch) return;
+
+        this.bInBatch = false;
+        this.batchWrites.clear();
 
-        this.pageIndex.remove(new Integer(id));
+        // free the pages the batch gave to its entries first, a page freed by one entry may have been reused by another.
+        Iterator it = this.batchUndo.keySet().iterator();
+        while (it.hasNext())
+        {
+            int id = ((Integer) it.next()).intValue();
+            if (id < this.lengths.length && this.lengths[id] >= 0) freePages(id);
+        }
 
-        for (int cIndex = 0; cIndex < e.pages.size(); cIndex++)
+        it = this.batchUndo.entrySet().iterator();
+        while (it.hasNext())
         {
-            this.emptyPages.add(e.pages.get(cIndex));
+            Map.Entry me = (Map.Entry) it.next();
+            int id = ((Integer) me.getKey()).intValue();
+            int[] e = (int[]) me.getValue();
+
+            ensureCapacity(id + 1);
+            this.lengths[id] = e[0];
+            this.starts[id] = e[1];
+            this.checksums[id] = e[2];
+            this.scattered[id] = (e.length > 5) ? Arrays.copyOfRange(e, 5, e.length) : null;
+
+            if (e[3] == 1) this.unchecked.set(id);
+            else this.unchecked.clear(id);
+
+            if (e[4] == 1) this.dirtyPages.set(id);
+            else this.dirtyPages.clear(id);
+
+            if (e[0] >= 0)
+            {
+                this.emptyIds.clear(id);
+                if (this.scattered[id] == null) this.emptyPages.clear(e[1], e[1] + pageCount(e[0]));
+                else for (int cIndex = 0; cIndex < this.scattered[id].length; cIndex++) this.emptyPages.clear(this.scattered[id][cIndex]);
+            }
+            else if (id < this.batchNextId)
+            {
+                this.emptyIds.set(id);
+            }
         }
+
+        // nothing was in use after the end of the file or the largest identifier before the batch.
+        this.emptyPages.clear(this.batchNextPage, Math.max(this.batchNextPage, this.nextPage));
+        this.nextPage = this.batchNextPage;
+        this.emptyIds.clear(this.batchNextId, Math.max(this.batchNextId, this.nextId));
+        this.nextId = this.batchNextId;
+
+        this.batchUndo.clear();
+        this.pageOwners = null;
+    }
+
+    public void commitBatch()
+    {
+        writeBatch();
     }
 
     public void close()
     {
         flush();
+
+        try
+        {
+            if (this.checkpointThread != null) this.checkpointThread.join();
+            this.journalFile.close();
+            this.dataFile.close();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted index file.");
+        }
+    }
+
+    /**
+     * 按起始页面排序批次中的数据，相邻的区间合并为一次写入
+     */
+    private void writeBatch()
+    {
+        this.bInBatch = false;
+        this.batchUndo.clear();
+        if (this.batchWrites.isEmpty()) return;
+
+        // pending entries are never scattered. sort them by start page, identifiers in the low bits.
+        long[] keys = new long[this.batchWrites.size()];
+        int cKey = 0;
+
+        Iterator it = this.batchWrites.keySet().iterator();
+        while (it.hasNext())
+        {
+            int id = ((Integer) it.next()).intValue();
+            keys[cKey++] = ((long) this.starts[id] << 32) | id;
+        }
+
+        Arrays.sort(keys);
+
+        if (this.padding == null) this.padding = new byte[this.pageSize];
+
+        ArrayList run = new ArrayList();
+        int cIndex = 0;
+
+        while (cIndex < keys.length)
+        {
+            int id = (int) keys[cIndex];
+            int start = this.starts[id];
+            int next = start;
+
+            run.clear();
+
+            while (true)
+            {
+                byte[] data = (byte[]) this.batchWrites.get(new Integer(id));
+                run.add(ByteBuffer.wrap(data));
+                next += pageCount(data.length);
+                cIndex++;
+
+                if (cIndex == keys.length || this.starts[(int) keys[cIndex]] != next) break;
+
+                // fill the rest of the last page, so that the next entry starts on its own page.
+                int pad = pageCount(data.length) * this.pageSize - data.length;
+                if (pad > 0) run.add(ByteBuffer.wrap(this.padding, 0, pad));
+
+                id = (int) keys[cIndex];
+            }
+
+            writeRun(start, (ByteBuffer[]) run.toArray(new ByteBuffer[run.size()]));
+        }
+
+        this.batchWrites.clear();
     }
 
-    class Entry
+    /**
+     * 将ids[from, to)依次移动到从target开始的连续页面上。先把这些页面上的其他数据移到后面，
+     * 日志同步到磁盘之后再移动，这样任何时刻崩溃都不会覆盖日志中仍在使用的页面。不能与修改同时进行
+     * @param ids
+     * @param from
+     * @param to
+     * @param target
+     * @return 下一个可用的页面
+     */
+    public int relocate(final int[] ids, final int from, final int to, final int target)
     {
-        int length = 0;
-        ArrayList pages = new ArrayList();
+        // from here on, every empty page is empty in the journal on the disk as well.
+        sync();
+
+        int[] targets = new int[to - from];
+        int end = target;
+
+        for (int cIndex = from; cIndex < to; cIndex++)
+        {
+            int id = ids[cIndex];
+
+            // deleted since the order was computed.
+            if (id < 0 || id >= this.lengths.length || this.lengths[id] < 0)
+            {
+                targets[cIndex - from] = -1;
+                continue;
+            }
+
+            targets[cIndex - from] = end;
+            end += pageCount(this.lengths[id]);
+        }
+
+        // move everything out of the way that is not in its place already.
+        for (int cPage = target; cPage < end && cPage < this.nextPage; cPage++)
+        {
+            if (this.emptyPages.get(cPage)) continue;
+
+            int owner = ownerOf(cPage);
+            int cIndex = indexOf(ids, from, to, owner);
+
+            if (cIndex >= 0 && this.scattered[owner] == null && this.starts[owner] == targets[cIndex - from]) continue;
+
+            // at the end of the file, the pages freed meanwhile are still in use in the journal.
+            moveEntry(owner, allocateExtent(pageCount(this.lengths[owner]), Math.max(end, this.nextPage)));
+        }
+
+        // the moved data and the journal freeing the target pages are on the disk before the targets are overwritten.
+        sync();
+
+        for (int cIndex = from; cIndex < to; cIndex++)
+        {
+            int id = ids[cIndex];
+            int t = targets[cIndex - from];
+
+            if (t < 0 || (this.scattered[id] == null && this.starts[id] == t)) continue;
+
+            this.emptyPages.clear(t, t + pageCount(this.lengths[id]));
+            this.nextPage = Math.max(this.nextPage, t + pageCount(this.lengths[id]));
+            moveEntry(id, t);
+        }
+
+        sync();
+
+        return end;
+    }
+
+    /**
+     * 将target之后剩余的数据移到target开始的位置，然后截短数据文件。不能与修改同时进行
+     * @param target
+     */
+    public void truncate(final int target)
+    {
+        int[] rest = new int[this.lengths.length];
+        int count = 0;
+
+        for (int id = 0; id < this.lengths.length; id++)
+        {
+            if (this.lengths[id] < 0) continue;
+
+            if (this.scattered[id] != null || this.starts[id] + pageCount(this.lengths[id]) > target) rest[count++] = id;
+        }
+
+        int end = relocate(rest, 0, count, target);
+
+        // nothing lives at or after end anymore.
+        this.emptyPages.clear(end, Math.max(end, this.nextPage));
+        this.nextPage = end;
+        flush();
+
+        truncateData((long) end * this.pageSize);
+        this.pageOwners = null;
+    }
+
+    private void moveEntry(int id, int start)
+    {
+        byte[] data = readEntry(id);
+        writePages(start, data, 0, data.length);
+
+        freePages(id);
+        if (this.pageOwners != null) setOwner(id, -1);
+
+        this.starts[id] = start;
+        this.scattered[id] = null;
+        this.dirtyPages.set(id);
+
+        if (this.pageOwners != null) setOwner(id, id);
+    }
+
+    /**
+     * 记录页表项在批次中第一次修改之前的状态
+     * @param id
+     */
+    private void remember(int id)
+    {
+        Integer key = new Integer(id);
+        if (this.batchUndo.containsKey(key)) return;
+
+        int[] e;
+
+        if (id >= this.lengths.length || this.lengths[id] < 0)
+        {
+            e = new int[] {-1, 0, 0, 0, 0};
+        }
+        else
+        {
+            int[] p = this.scattered[id];
+            e = new int[(p == null) ? 5 : 5 + p.length];
+            e[0] = this.lengths[id];
+            e[1] = this.starts[id];
+            e[2] = this.checksums[id];
+            e[3] = this.unchecked.get(id) ? 1 : 0;
+            if (p != null) System.arraycopy(p, 0, e, 5, p.length);
+        }
+
+        e[4] = this.dirtyPages.get(id) ? 1 : 0;
+        this.batchUndo.put(key, e);
+    }
+
+    private int indexOf(int[] ids, int from, int to, int id)
+    {
+        for (int cIndex = from; cIndex < to; cIndex++) if (ids[cIndex] == id) return cIndex;
+        return -1;
+    }
+
+    private int ownerOf(int page)
+    {
+        for (int cTry = 0; cTry < 2; cTry++)
+        {
+            if (this.pageOwners != null && page < this.pageOwners.length)
+            {
+                int id = this.pageOwners[page];
+                if (id >= 0 && id < this.lengths.length && this.lengths[id] >= 0 && covers(id, page)) return id;
+            }
+
+            // stale after changes made between two compaction steps.
+            this.pageOwners = new int[this.nextPage];
+            Arrays.fill(this.pageOwners, -1);
+
+            for (int id = 0; id < this.lengths.length; id++)
+            {
+                if (this.lengths[id] >= 0) setOwner(id, id);
+            }
+        }
+
+        throw new IllegalStateException("Corrupted index file.");
+    }
+
+    private boolean covers(int id, int page)
+    {
+        int[] p = this.scattered[id];
+
+        if (p == null) return page >= this.starts[id] && page < this.starts[id] + pageCount(this.lengths[id]);
+
+        for (int cIndex = 0; cIndex < p.length; cIndex++) if (p[cIndex] == page) return true;
+        return false;
+    }
+
+    private void setOwner(int id, int owner)
+    {
+        int[] p = this.scattered[id];
+        int count = (p == null) ? pageCount(this.lengths[id]) : p.length;
+
+        for (int cIndex = 0; cIndex < count; cIndex++)
+        {
+            int page = (p == null) ? this.starts[id] + cIndex : p[cIndex];
+
+            if (page >= this.pageOwners.length)
+            {
+                int[] o = new int[Math.max(page + 1, 2 * this.pageOwners.length)];
+                Arrays.fill(o, this.pageOwners.length, o.length, -1);
+                System.arraycopy(this.pageOwners, 0, o, 0, this.pageOwners.length);
+                this.pageOwners = o;
+            }
+
+            this.pageOwners[page] = owner;
+        }
+    }
+
+    /**
+     * 并行校验所有数据的CRC32，不能与修改同时进行
+     * @param threads 线程数，通常是处理器的个数
+     * @return 校验失败的编号
+     */
+    public int[] scrub(int threads)
+    {
+        // visit the entries in file order, so that every thread reads sequentially.
+        long[] keys = new long[this.lengths.length];
+        int count = 0;
+
+        for (int id = 0; id < this.lengths.length; id++)
+        {
+            if (this.lengths[id] >= 0 && ! this.unchecked.get(id)) keys[count++] = ((long) this.starts[id] << 32) | id;
+        }
+
+        Arrays.sort(keys, 0, count);
+
+        final long[] work = keys;
+        final int total = count;
+        final BitSet failed = new BitSet();
+        Thread[] workers = new Thread[Math.max(1, threads)];
+
+        for (int cThread = 0; cThread < workers.length; cThread++)
+        {
+            final int from = (int) ((long) total * cThread / workers.length);
+            final int to = (int) ((long) total * (cThread + 1) / workers.length);
+
+            workers[cThread] = new Thread("DiskStorageManager scrub")
+            {
+                public void run()
+                {
+                    for (int cKey = from; cKey < to; cKey++)
+                    {
+                        int id = (int) work[cKey];
+
+                        boolean b;
+
+                        try
+                        {
+                            byte[] data = readEntry(id);
+                            b = checksum(data, 0, data.length) == checksums[id];
+                        }
+                        catch (IllegalStateException ex)
+                        {
+                            b = false;
+                        }
+
+                        if (! b)
+                        {
+                            synchronized (failed)
+                            {
+                                failed.set(id);
+                            }
+                        }
+                    }
+                }
+            };
+            workers[cThread].start();
+        }
+
+        for (int cThread = 0; cThread < workers.length; cThread++)
+        {
+            try
+            {
+                workers[cThread].join();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        int[] ret = new int[failed.cardinality()];
+        int cIndex = 0;
+        for (int id = failed.nextSetBit(0); id >= 0; id = failed.nextSetBit(id + 1)) ret[cIndex++] = id;
+        return ret;
+    }
+
+    /**
+     * 打开已有的索引文件，使用所有处理器校验全部数据，然后关闭
+     * @param fileName
+     * @return 校验失败的编号
+     * @throws IOException
+     */
+    public static int[] scrub(String fileName) throws IOException
+    {
+        PropertySet ps = new PropertySet();
+        ps.setProperty("FileName", fileName);
+        ps.setProperty("Overwrite", Boolean.FALSE);
+
+        DiskStorageManager sm = new DiskStorageManager(ps);
+
+        try
+        {
+            return sm.scrub(Runtime.getRuntime().availableProcessors());
+        }
+        finally
+        {
+            sm.close();
+        }
+    }
+
+    private void verify(int id, byte[] data)
+    {
+        if (! this.verifyChecksums || this.unchecked.get(id) || (this.bInBatch && this.batchWrites.containsKey(new Integer(id)))) return;
+
+        if (checksum(data, 0, data.length) != this.checksums[id])
+            throw new IllegalStateException("Corrupted data file, page " + id + " failed its checksum.");
+    }
+
+    private static int checksum(byte[] data, int off, int len)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+
+    private IPageCodec createCodec(String name)
+    {
+        if (name.equals(DeflatePageCodec.Name)) return new DeflatePageCodec();
+        throw new IllegalArgumentException("Unknown page codec " + name);
+    }
+
+    private int pageCount(int length)
+    {
+        // an empty array still takes a page.
+        return Math.max(1, (length + this.pageSize - 1) / this.pageSize);
+    }
+
+    private int allocateId()
+    {
+        // lowest unused identifier first.
+        int id = this.emptyIds.nextSetBit(0);
+
+        if (id >= 0)
+        {
+            this.emptyIds.clear(id);
+            return id;
+        }
+
+        return this.nextId++;
+    }
+
+    private int allocateExtent(int count)
+    {
+        return allocateExtent(count, 0);
+    }
+
+    /**
+     * 分配count个连续的页面，使用from之后第一个足够大的空闲区间，没有时从文件末尾分配
+     * @param count
+     * @param from
+     * @return 第一个页面
+     */
+    private int allocateExtent(int count, int from)
+    {
+        int start = this.emptyPages.nextSetBit(from);
+
+        while (start >= 0)
+        {
+            int end = this.emptyPages.nextClearBit(start);
+
+            // a run that reaches the end of the file can always be extended.
+            if (end - start >= count || end >= this.nextPage) break;
+
+            start = this.emptyPages.nextSetBit(end);
+        }
+
+        if (start < 0)
+        {
+            start = Math.max(from, this.nextPage);
+
+            // pages skipped at the end of the file stay usable.
+            if (start > this.nextPage) this.emptyPages.set(this.nextPage, start);
+        }
+
+        this.emptyPages.clear(start, start + count);
+        this.nextPage = Math.max(this.nextPage, start + count);
+
+        return start;
+    }
+
+    private boolean isExtentFree(int from, int to)
+    {
+        int end = this.emptyPages.nextClearBit(from);
+        return end >= to || end >= this.nextPage;
+    }
+
+    private void freePages(int id)
+    {
+        int[] p = this.scattered[id];
+
+        if (p == null)
+        {
+            this.emptyPages.set(this.starts[id], this.starts[id] + pageCount(this.lengths[id]));
+        }
+        else
+        {
+            for (int cIndex = 0; cIndex < p.length; cIndex++) this.emptyPages.set(p[cIndex]);
+        }
+    }
+
+    private void putEntry(int id, int length, int[] p)
+    {
+        ensureCapacity(id + 1);
+        this.lengths[id] = length;
+        this.unchecked.set(id);
+        this.starts[id] = p[0];
+        this.scattered[id] = null;
+
+        for (int cIndex = 1; cIndex < p.length; cIndex++)
+        {
+            if (p[cIndex] != p[0] + cIndex)
+            {
+                this.scattered[id] = p;
+                break;
+            }
+        }
+    }
+
+    private void writePageList(DataOutputStream ds, int length, int start, int[] p) throws IOException
+    {
+        if (p == null)
+        {
+            int count = pageCount(length);
+            ds.writeInt(count);
+            for (int cIndex = 0; cIndex < count; cIndex++) ds.writeInt(start + cIndex);
+        }
+        else
+        {
+            ds.writeInt(p.length);
+            for (int cIndex = 0; cIndex < p.length; cIndex++) ds.writeInt(p[cIndex]);
+        }
+    }
+
+    private void ensureCapacity(int size)
+    {
+        if (size <= this.lengths.length) return;
+
+        int capacity = Math.max(size, Math.max(16, 2 * this.lengths.length));
+
+        int[] l = new int[capacity];
+        System.arraycopy(this.lengths, 0, l, 0, this.lengths.length);
+        Arrays.fill(l, this.lengths.length, capacity, -1);
+        this.lengths = l;
+
+        int[] i = new int[capacity];
+        System.arraycopy(this.starts, 0, i, 0, this.starts.length);
+        this.starts = i;
+
+        int[][] p = new int[capacity][];
+        System.arraycopy(this.scattered, 0, p, 0, this.scattered.length);
+        this.scattered = p;
+
+        i = new int[capacity];
+        System.arraycopy(this.checksums, 0, i, 0, this.checksums.length);
+        this.checksums = i;
+    }
+
+    private boolean isCheckpointRunning()
+    {
+        return this.checkpointThread != null && this.checkpointThread.isAlive();
+    }
+
+    /**
+     * 切换到新的日志文件，并在后台线程中将当前页表写为检查点，完成后删除旧日志
+     * @throws IOException
+     */
+    private void startCheckpoint() throws IOException
+    {
+        // page lists are never modified after they are put in the table, so a shallow copy is a snapshot.
+        if (this.oldJournalPath.exists())
+        {
+            // the previous checkpoint failed. write this one synchronously, it covers both journals.
+            writeCheckpoint(this.nextPage, this.emptyPages, this.lengths, this.starts, this.scattered, this.checksums, this.unchecked);
+            this.oldJournalPath.delete();
+            this.journalFile.setLength(0);
+            return;
+        }
+
+        final int snapshotNextPage = this.nextPage;
+        final BitSet snapshotEmptyPages = (BitSet) this.emptyPages.clone();
+        final int[] snapshotLengths = this.lengths.clone();
+        final int[] snapshotStarts = this.starts.clone();
+        final int[][] snapshotScattered = this.scattered.clone();
+        final int[] snapshotChecksums = this.checksums.clone();
+        final BitSet snapshotUnchecked = (BitSet) this.unchecked.clone();
+
+        // the old journal is needed until the checkpoint is written, it must not get lost on its way there.
+        this.journalFile.getFD().sync();
+        this.journalFile.close();
+        if (! this.journalPath.renameTo(this.oldJournalPath)) throw new IOException("Journal file cannot be renamed.");
+        this.journalFile = new RandomAccessFile(this.journalPath, "rw");
+
+        this.checkpointThread = new Thread("DiskStorageManager checkpoint")
+        {
+            public void run()
+            {
+                try
+                {
+                    writeCheckpoint(snapshotNextPage, snapshotEmptyPages, snapshotLengths, snapshotStarts, snapshotScattered, snapshotChecksums, snapshotUnchecked);
+                    oldJournalPath.delete();
+                }
+                catch (IOException ex)
+                {
+                    // the old journal is kept and replayed on the next open.
+                    System.err.println(ex);
+                }
+            }
+        };
+        this.checkpointThread.setDaemon(true);
+        this.checkpointThread.start();
+    }
+
+    /**
+     * 将页表完整写入临时文件，然后原子地替换索引文件
+     * @param nextPage
+     * @param emptyPages
+     * @param lengths
+     * @param starts
+     * @param scattered
+     * @param checksums
+     * @param unchecked
+     * @throws IOException
+     */
+    private void writeCheckpoint(int nextPage, BitSet emptyPages, int[] lengths, int[] starts, int[][] scattered, int[] checksums, BitSet unchecked) throws IOException
+    {
+        File tmp = new File(this.indexPath.getPath() + ".tmp");
+        FileOutputStream fs = new FileOutputStream(tmp);
+        DataOutputStream ds = new DataOutputStream(new BufferedOutputStream(fs));
+
+        ds.writeInt(this.pageSize);
+        ds.writeInt(nextPage);
+
+        ds.writeInt(emptyPages.cardinality());
+
+        for (int page = emptyPages.nextSetBit(0); page >= 0; page = emptyPages.nextSetBit(page + 1))
+        {
+            ds.writeInt(page);
+        }
+
+        int count = 0;
+        for (int id = 0; id < lengths.length; id++) if (lengths[id] >= 0) count++;
+
+        ds.writeInt(count);
+
+        for (int id = 0; id < lengths.length; id++)
+        {
+            if (lengths[id] < 0) continue;
+
+            ds.writeInt(id);
+            ds.writeInt(lengths[id]);
+            writePageList(ds, lengths[id], starts[id], scattered[id]);
+        }
+
+        // trailer, older files end before it.
+        ds.writeUTF((this.codec == null) ? "" : this.codec.getName());
+
+        count = 0;
+        for (int id = 0; id < lengths.length; id++) if (lengths[id] >= 0 && ! unchecked.get(id)) count++;
+
+        ds.writeInt(count);
+
+        for (int id = 0; id < lengths.length; id++)
+        {
+            if (lengths[id] < 0 || unchecked.get(id)) continue;
+
+            ds.writeInt(id);
+            ds.writeInt(checksums[id]);
+        }
+
+        ds.flush();
+        fs.getFD().sync();
+        ds.close();
+
+        Files.move(tmp.toPath(), this.indexPath.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读入检查点中的页表
+     * @return 页面编码的名字，没有编码时为空字符串
+     * @throws IOException
+     */
+    private String loadCheckpoint() throws IOException
+    {
+        DataInputStream ds = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexPath)));
+
+        try
+        {
+            try
+            {
+                this.pageSize = ds.readInt();
+            }
+            catch (EOFException ex)
+            {
+                throw new IllegalStateException("Failed reading pageSize.");
+            }
+
+            try
+            {
+                this.nextPage = ds.readInt();
+            }
+            catch (EOFException ex)
+            {
+                throw new IllegalStateException("Failed reading nextPage.");
+            }
+
+            int count, id;
+
+            // load empty pages in memory.
+            try
+            {
+                count = ds.readInt();
+
+                for (int cCount = 0; cCount < count; cCount++)
+                {
+                    this.emptyPages.set(ds.readInt());
+                }
+
+                // load index table in memory.
+                count = ds.readInt();
+
+                for (int cCount = 0; cCount < count; cCount++)
+                {
+                    id = ds.readInt();
+                    int length = ds.readInt();
+
+                    int[] p = new int[ds.readInt()];
+
+                    for (int cIndex = 0; cIndex < p.length; cIndex++)
+                    {
+                        p[cIndex] = ds.readInt();
+                    }
+                    putEntry(id, length, p);
+                }
+            }
+            catch (EOFException ex)
+            {
+                throw new IllegalStateException("Corrupted index file.");
+            }
+
+            String name;
+
+            try
+            {
+                name = ds.readUTF();
+            }
+            catch (EOFException ex)
+            {
+                // written before page codecs existed.
+                return "";
+            }
+
+            try
+            {
+                count = ds.readInt();
+
+                for (int cCount = 0; cCount < count; cCount++)
+                {
+                    id = ds.readInt();
+                    this.checksums[id] = ds.readInt();
+                    this.unchecked.clear(id);
+                }
+            }
+            catch (EOFException ex)
+            {
+                // written before checksums existed.
+            }
+
+            return name;
+        }
+        finally
+        {
+            ds.close();
+        }
+    }
+
+    /**
+     * 重放日志中已提交的修改，并截掉末尾未完整写入的记录
+     * @param f
+     * @return 是否重放了任何修改
+     * @throws IOException
+     */
+    private boolean replayJournal(RandomAccessFile f) throws IOException
+    {
+        DataInputStream ds = new DataInputStream(new BufferedInputStream(new FileInputStream(f.getFD())));
+        HashMap pending = new HashMap();
+        long committed = 0;
+        long position = 0;
+        boolean bReplayed = false;
+
+        try
+        {
+            while (true)
+            {
+                byte type = ds.readByte();
+                position += 1;
+
+                if (type == JournalStore || type == JournalStoreChecked)
+                {
+                    // the length and the checksum go first, followed by the pages.
+                    int id = ds.readInt();
+                    int length = ds.readInt();
+                    int checksum = 0;
+                    position += 8;
+
+                    if (type == JournalStoreChecked)
+                    {
+                        checksum = ds.readInt();
+                        position += 4;
+                    }
+
+                    int[] e = new int[ds.readInt() + 3];
+                    position += 4;
+
+                    e[0] = length;
+                    e[1] = (type == JournalStoreChecked) ? 1 : 0;
+                    e[2] = checksum;
+
+                    for (int cIndex = 3; cIndex < e.length; cIndex++)
+                    {
+                        e[cIndex] = ds.readInt();
+                        position += 4;
+                    }
+
+                    pending.put(new Integer(id), e);
+                }
+                else if (type == JournalDelete)
+                {
+                    pending.put(new Integer(ds.readInt()), null);
+                    position += 4;
+                }
+                else if (type == JournalCommit)
+                {
+                    this.nextPage = ds.readInt();
+                    position += 4;
+
+                    Iterator it = pending.entrySet().iterator();
+                    while (it.hasNext())
+                    {
+                        Map.Entry me = (Map.Entry) it.next();
+                        int id = ((Integer) me.getKey()).intValue();
+                        int[] e = (int[]) me.getValue();
+
+                        if (e == null)
+                        {
+                            ensureCapacity(id + 1);
+                            this.lengths[id] = -1;
+                            this.scattered[id] = null;
+                        }
+                        else
+                        {
+                            putEntry(id, e[0], Arrays.copyOfRange(e, 3, e.length));
+
+                            if (e[1] == 1)
+                            {
+                                this.checksums[id] = e[2];
+                                this.unchecked.clear(id);
+                            }
+                        }
+                    }
+
+                    pending.clear();
+                    committed = position;
+                    bReplayed = true;
+                }
+                else
+                {
+                    break;
+                }
+            }
+        }
+        catch (EOFException ex)
+        {
+            // a flush that was cut short. it is discarded below.
+        }
+
+        f.setLength(committed);
+
+        return bReplayed;
+    }
+
+    protected int getPageSize()
+    {
+        return this.pageSize;
+    }
+
+    protected RandomAccessFile getDataFile()
+    {
+        return this.dataFile;
+    }
+
+    /**
+     * 从页面的起始处读取len个字节，可以跨越多个连续的页面，使用定位读取，不改变文件指针，可被多个线程同时调用
+     * @param page
+     * @param data
+     * @param off
+     * @param len
+     */
+    protected void readPages(int page, byte[] data, int off, int len)
+    {
+        ByteBuffer b = ByteBuffer.wrap(data, off, len);
+        long position = (long) page * this.pageSize;
+
+        try
+        {
+            while (b.hasRemaining())
+            {
+                int bytesread = this.dataChannel.read(b, position + (b.position() - off));
+                if (bytesread < 0) throw new IllegalStateException("Corrupted data file.");
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted data file.");
+        }
+    }
+
+    /**
+     * 把数据文件中已写入的页面强制写入磁盘
+     */
+    protected void forceData()
+    {
+        try
+        {
+            this.dataChannel.force(false);
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted data file.");
+        }
+    }
+
+    /**
+     * 截短数据文件
+     * @param length
+     */
+    protected void truncateData(long length)
+    {
+        try
+        {
+            if (this.dataFile.length() > length) this.dataFile.setLength(length);
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted data file.");
+        }
+    }
+
+    /**
+     * 返回从页面的起始处开始的len个字节的只读视图
+     * @param page
+     * @param len
+     * @return
+     */
+    protected ByteBuffer viewPages(int page, int len)
+    {
+        // the data has to be read from the file anyway, the array is not shared with anyone.
+        byte[] data = new byte[len];
+        readPages(page, data, 0, len);
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     * 从页面的起始处写入len个字节，可以跨越多个连续的页面
+     * @param page
+     * @param data
+     * @param off
+     * @param len
+     */
+    protected void writePages(int page, byte[] data, int off, int len)
+    {
+        ByteBuffer b = ByteBuffer.wrap(data, off, len);
+        long position = (long) page * this.pageSize;
+
+        try
+        {
+            while (b.hasRemaining())
+            {
+                this.dataChannel.write(b, position + (b.position() - off));
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted data file.");
+        }
+    }
+
+    /**
+     * 从页面的起始处依次写入多个缓冲区，使用一次聚集写入
+     * @param page
+     * @param srcs
+     */
+    protected void writeRun(int page, ByteBuffer[] srcs)
+    {
+        if (srcs.length == 1)
+        {
+            ByteBuffer b = srcs[0];
+            writePages(page, b.array(), b.arrayOffset() + b.position(), b.remaining());
+            return;
+        }
+
+        long remaining = 0;
+        for (int cIndex = 0; cIndex < srcs.length; cIndex++) remaining += srcs[cIndex].remaining();
+
+        try
+        {
+            // gathering writes use the channel position. readers use positional reads only.
+            this.dataChannel.position((long) page * this.pageSize);
+
+            while (remaining > 0)
+            {
+                remaining -= this.dataChannel.write(srcs);
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted data file.");
+        }
     }
-}
+}
\ No newline at end of file
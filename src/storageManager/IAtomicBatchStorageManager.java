@@ -0,0 +1,5 @@
+package storageManager;
+
+// a batch is either fully visible or not visible at all after a crash.
+public interface IAtomicBatchStorageManager extends IBatchStorageManager {
+}
@@ -0,0 +1,8 @@
+package storageManager;
+
+public interface IBatchStorageManager extends IStorageManager {
+    public void beginBatch();
+    public void commitBatch();
+    // discards the changes of the current batch, nothing happens when no batch is open.
+    public void abortBatch();
+}
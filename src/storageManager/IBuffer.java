@@ -0,0 +1,9 @@
+package storageManager;
+
+public interface IBuffer extends IStorageManager {
+    public long getHits();
+    public long getMisses();
+    // hits of the loads made by the calling thread only, concurrent readers do not change it.
+    public long getThreadHits();
+    public void clear();
+}
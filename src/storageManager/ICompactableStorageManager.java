@@ -0,0 +1,6 @@
+package storageManager;
+
+public interface ICompactableStorageManager extends IStorageManager {
+    public int relocate(final int[] ids, final int from, final int to, final int target);
+    public void truncate(final int target);
+}
@@ -0,0 +1,8 @@
+package storageManager;
+
+public interface IPageCodec {
+    // the name is recorded in the index file, so that the data can be decoded after reopening.
+    public String getName();
+    public byte[] encode(final byte[] data);
+    public byte[] decode(final byte[] data);
+}
@@ -0,0 +1,5 @@
+package storageManager;
+
+public interface IPrefetchStorageManager extends IStorageManager {
+    public void prefetch(final int[] ids, final int count);
+}
@@ -1,10 +1,26 @@
 package storageManager;
 
+import java.nio.ByteBuffer;
+
 public interface IStorageManager {
     public static final int NewPage = -1;
 
     public void flush();
     public byte[] loadByteArray(final int id);
+
+    /**
+     * 返回页面数据的只读视图，尽量不复制数据。视图在该页面下一次被修改之前有效
+     * @param id
+     * @return
+     */
+    public ByteBuffer loadByteBuffer(final int id);
+
+    /**
+     * 一次读取多个页面，返回的数组与ids一一对应
+     * @param ids
+     * @return
+     */
+    public byte[][] loadByteArrays(final int[] ids);
     public int storeByteArray(final int id, final byte[] data);
     public void deleteByteArray(final int id);
 }
@@ -0,0 +1,6 @@
+package storageManager;
+
+public interface ISyncableStorageManager extends IStorageManager {
+    // flushes, then forces everything stored so far to the disk.
+    public void sync();
+}
@@ -0,0 +1,9 @@
+package storageManager;
+
+public interface ITieredStorageManager extends IStorageManager {
+    public static final int MemoryTier = 1;
+    public static final int DiskTier = 2;
+
+    // stores the page in the given tier, moving it there if it is in the other one.
+    public int storeByteArray(final int id, final byte[] data, final int tier);
+}
@@ -0,0 +1,183 @@
+package storageManager;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+public class MappedDiskStorageManager extends DiskStorageManager {
+    private FileChannel channel = null;
+    private long segmentSize = 64 * 1024 * 1024;
+    private ArrayList segments = new ArrayList();
+
+    public MappedDiskStorageManager(PropertySet ps)
+            throws SecurityException, NullPointerException, IOException, FileNotFoundException, IllegalArgumentException
+    {
+        super(ps);
+
+        Object var;
+
+        // size of every mapped segment of the data file.
+        var = ps.getProperty("SegmentSize");
+
+        if (var != null)
+        {
+            if (! (var instanceof Integer)) throw new IllegalArgumentException("Property SegmentSize must be an Integer");
+            this.segmentSize = ((Integer) var).intValue();
+        }
+
+        // segments hold whole pages only, so that a page never spans two mappings.
+        int pageSize = getPageSize();
+        this.segmentSize = Math.max(1, this.segmentSize / pageSize) * (long) pageSize;
+
+        this.channel = getDataFile().getChannel();
+    }
+
+    public void flush()
+    {
+        super.flush();
+
+        synchronized (this.segments)
+        {
+            for (int cIndex = 0; cIndex < this.segments.size(); cIndex++)
+            {
+                MappedByteBuffer b = (MappedByteBuffer) this.segments.get(cIndex);
+                if (b != null) b.force();
+            }
+        }
+    }
+
+    protected void readPages(int page, byte[] data, int off, int len)
+    {
+        long offset = (long) page * getPageSize();
+
+        // an extent can span several segments.
+        do
+        {
+            ByteBuffer b = getSegmentView(offset);
+            int cLen = Math.min(len, b.remaining());
+            b.get(data, off, cLen);
+
+            offset += cLen;
+            off += cLen;
+            len -= cLen;
+        }
+        while (len > 0);
+    }
+
+    protected void forceData()
+    {
+        synchronized (this.segments)
+        {
+            for (int cIndex = 0; cIndex < this.segments.size(); cIndex++)
+            {
+                MappedByteBuffer b = (MappedByteBuffer) this.segments.get(cIndex);
+                if (b != null) b.force();
+            }
+        }
+
+        super.forceData();
+    }
+
+    /**
+     * 截短到最后一个仍在使用的段的末尾. 段总是整段映射, 之后的段不再映射, 它们的页面都已不再使用
+     * @param length
+     */
+    protected void truncateData(long length)
+    {
+        int keep = (int) ((length + this.segmentSize - 1) / this.segmentSize);
+
+        synchronized (this.segments)
+        {
+            while (this.segments.size() > keep) this.segments.remove(this.segments.size() - 1);
+        }
+
+        super.truncateData(keep * this.segmentSize);
+    }
+
+    protected ByteBuffer viewPages(int page, int len)
+    {
+        ByteBuffer b = getSegmentView((long) page * getPageSize());
+
+        // an extent that spans two segments has to be copied.
+        if (b.remaining() < len) return super.viewPages(page, len);
+
+        b.limit(b.position() + len);
+        return b.slice().asReadOnlyBuffer();
+    }
+
+    protected void writePages(int page, byte[] data, int off, int len)
+    {
+        long offset = (long) page * getPageSize();
+
+        do
+        {
+            ByteBuffer b = getSegmentView(offset);
+            int cLen = Math.min(len, b.remaining());
+            b.put(data, off, cLen);
+
+            offset += cLen;
+            off += cLen;
+            len -= cLen;
+        }
+        while (len > 0);
+    }
+
+    protected void writeRun(int page, ByteBuffer[] srcs)
+    {
+        long offset = (long) page * getPageSize();
+
+        // copying into the mapping needs no system call, so the buffers are simply written one after another.
+        for (int cIndex = 0; cIndex < srcs.length; cIndex++)
+        {
+            ByteBuffer src = srcs[cIndex];
+            while (src.hasRemaining())
+            {
+                ByteBuffer b = getSegmentView(offset);
+                int cLen = Math.min(src.remaining(), b.remaining());
+                b.put(src.array(), src.arrayOffset() + src.position(), cLen);
+                src.position(src.position() + cLen);
+                offset += cLen;
+            }
+        }
+    }
+
+    /**
+     * 返回偏移所在段的视图，位置指向该偏移，必要时映射新的段
+     * @param offset
+     * @return
+     */
+    private ByteBuffer getSegmentView(long offset)
+    {
+        int segment = (int) (offset / this.segmentSize);
+        MappedByteBuffer b = null;
+
+        synchronized (this.segments)
+        {
+            while (this.segments.size() <= segment) this.segments.add(null);
+
+            b = (MappedByteBuffer) this.segments.get(segment);
+
+            if (b == null)
+            {
+                try
+                {
+                    // mapping past the end of the file grows it.
+                    b = this.channel.map(FileChannel.MapMode.READ_WRITE, segment * this.segmentSize, this.segmentSize);
+                }
+                catch (IOException ex)
+                {
+                    throw new IllegalStateException("Corrupted data file.");
+                }
+
+                this.segments.set(segment, b);
+            }
+        }
+
+        // every caller gets its own position and limit.
+        ByteBuffer view = b.duplicate();
+        view.position((int) (offset - segment * this.segmentSize));
+        return view;
+    }
+}
@@ -1,5 +1,6 @@
 package storageManager;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Stack;
 
@@ -7,6 +8,24 @@ public class MemoryStorageManager implements IStorageManager {
     private ArrayList buffer = new ArrayList();
     private Stack emptyPages = new Stack();
 
+    // when set, stored arrays are owned by the storage manager and handed out without copying.
+    private boolean shareBuffers = false;
+
+    public MemoryStorageManager()
+    {
+    }
+
+    public MemoryStorageManager(PropertySet ps) throws IllegalArgumentException
+    {
+        Object var = ps.getProperty("ShareBuffers");
+
+        if (var != null)
+        {
+            if (! (var instanceof Boolean)) throw new IllegalArgumentException("Property ShareBuffers must be a Boolean");
+            this.shareBuffers = ((Boolean) var).booleanValue();
+        }
+    }
+
     public void flush()
     {
     }
@@ -24,15 +43,49 @@ public class MemoryStorageManager implements IStorageManager {
             throw new InvalidPageException(id);
         }
 
+        if (this.shareBuffers) return e.pData;
+
         byte[] ret = new byte[e.pData.length];
         System.arraycopy(e.pData, 0, ret, 0, e.pData.length);
         return ret;
     }
 
+    public ByteBuffer loadByteBuffer(final int id)
+    {
+        Entry e = null;
+
+        try
+        {
+            e = (Entry) this.buffer.get(id);
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+            throw new InvalidPageException(id);
+        }
+
+        if (e == null) throw new InvalidPageException(id);
+
+        // stored arrays are replaced, never modified, so they can be shared.
+        return ByteBuffer.wrap(e.pData).asReadOnlyBuffer();
+    }
+
+    public byte[][] loadByteArrays(final int[] ids)
+    {
+        byte[][] ret = new byte[ids.length][];
+        for (int cIndex = 0; cIndex < ids.length; cIndex++) ret[cIndex] = loadByteArray(ids[cIndex]);
+        return ret;
+    }
+
+    /**
+     * 存储一个页. ShareBuffers模式下data的所有权转移给存储管理器, 调用者之后不能再修改data
+     * @param id
+     * @param data
+     * @return 页号
+     */
     public int storeByteArray(final int id, final byte[] data)
     {
         int ret = id;
-        Entry e = new Entry(data);
+        Entry e = new Entry(data, ! this.shareBuffers);
 
         if (id == NewPage)
         {
@@ -76,10 +129,17 @@ public class MemoryStorageManager implements IStorageManager {
     {
         byte[] pData;
 
-        Entry(final byte[] d)
+        Entry(final byte[] d, boolean bCopy)
         {
-            this.pData = new byte[d.length];
-            System.arraycopy(d, 0, this.pData, 0, d.length);
+            if (bCopy)
+            {
+                this.pData = new byte[d.length];
+                System.arraycopy(d, 0, this.pData, 0, d.length);
+            }
+            else
+            {
+                this.pData = d;
+            }
         }
     } // Entry
 }
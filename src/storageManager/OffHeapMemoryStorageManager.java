@@ -0,0 +1,206 @@
+package storageManager;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+public class OffHeapMemoryStorageManager implements IStorageManager {
+    private static final int MinimumBlockShift = 6;
+
+    private int slabSize = 64 * 1024 * 1024;
+    private ArrayList slabs = new ArrayList();
+    private int slabOffset = 0;
+
+    // page table, indexed by page id. location is (slab << 32 | offset), length is -1 for empty pages.
+    private long[] location = new long[1024];
+    private int[] length = new int[1024];
+    private int nextPage = 0;
+
+    // empty page ids, used as a stack.
+    private int[] emptyPages = new int[64];
+    private int emptyPagesCount = 0;
+
+    // free blocks of every size class, used as stacks. class c holds blocks of (1 << (c + MinimumBlockShift)) bytes.
+    private long[][] freeBlocks;
+    private int[] freeBlocksCount;
+
+    public OffHeapMemoryStorageManager(PropertySet ps) throws IllegalArgumentException
+    {
+        Object var = ps.getProperty("SlabSize");
+
+        if (var != null)
+        {
+            if (! (var instanceof Integer)) throw new IllegalArgumentException("Property SlabSize must be an Integer");
+            int i = ((Integer) var).intValue();
+            if (i < (1 << MinimumBlockShift)) throw new IllegalArgumentException("Property SlabSize must be >= " + (1 << MinimumBlockShift));
+            if (i > (1 << 30)) throw new IllegalArgumentException("Property SlabSize must be <= " + (1 << 30));
+            this.slabSize = i;
+        }
+
+        // the largest size class must fit in a slab.
+        int classes = sizeClass(Integer.highestOneBit(this.slabSize)) + 1;
+
+        this.freeBlocks = new long[classes][];
+        this.freeBlocksCount = new int[classes];
+
+        for (int cClass = 0; cClass < classes; cClass++) this.freeBlocks[cClass] = new long[16];
+    }
+
+    public void flush()
+    {
+    }
+
+    public byte[] loadByteArray(final int id)
+    {
+        if (id < 0 || id >= this.nextPage || this.length[id] < 0) throw new InvalidPageException(id);
+
+        byte[] ret = new byte[this.length[id]];
+        ByteBuffer b = getView(this.location[id]);
+        b.get(ret);
+        return ret;
+    }
+
+    public ByteBuffer loadByteBuffer(final int id)
+    {
+        if (id < 0 || id >= this.nextPage || this.length[id] < 0) throw new InvalidPageException(id);
+
+        ByteBuffer b = getView(this.location[id]);
+        b.limit(b.position() + this.length[id]);
+        return b.slice().asReadOnlyBuffer();
+    }
+
+    public byte[][] loadByteArrays(final int[] ids)
+    {
+        byte[][] ret = new byte[ids.length][];
+        for (int cIndex = 0; cIndex < ids.length; cIndex++) ret[cIndex] = loadByteArray(ids[cIndex]);
+        return ret;
+    }
+
+    public int storeByteArray(final int id, final byte[] data)
+    {
+        if (sizeClass(data.length) >= this.freeBlocks.length) throw new IllegalArgumentException("Data does not fit in a slab.");
+
+        int ret = id;
+
+        if (id == NewPage)
+        {
+            if (this.emptyPagesCount > 0)
+            {
+                ret = this.emptyPages[--this.emptyPagesCount];
+            }
+            else
+            {
+                if (this.nextPage == this.length.length)
+                {
+                    long[] l = new long[2 * this.location.length];
+                    System.arraycopy(this.location, 0, l, 0, this.nextPage);
+                    this.location = l;
+
+                    int[] i = new int[2 * this.length.length];
+                    System.arraycopy(this.length, 0, i, 0, this.nextPage);
+                    this.length = i;
+                }
+
+                ret = this.nextPage++;
+            }
+
+            this.location[ret] = allocate(sizeClass(data.length));
+        }
+        else
+        {
+            if (id < 0 || id >= this.nextPage || this.length[id] < 0) throw new InvalidPageException(id);
+
+            // reuse the block in place when the size class did not change.
+            int c = sizeClass(data.length);
+            if (c != sizeClass(this.length[id]))
+            {
+                free(this.location[id], sizeClass(this.length[id]));
+                this.location[id] = allocate(c);
+            }
+        }
+
+        this.length[ret] = data.length;
+        ByteBuffer b = getView(this.location[ret]);
+        b.put(data);
+
+        return ret;
+    }
+
+    public void deleteByteArray(final int id)
+    {
+        if (id < 0 || id >= this.nextPage || this.length[id] < 0) throw new InvalidPageException(id);
+
+        free(this.location[id], sizeClass(this.length[id]));
+        this.length[id] = -1;
+
+        if (this.emptyPagesCount == this.emptyPages.length)
+        {
+            int[] i = new int[2 * this.emptyPages.length];
+            System.arraycopy(this.emptyPages, 0, i, 0, this.emptyPagesCount);
+            this.emptyPages = i;
+        }
+
+        this.emptyPages[this.emptyPagesCount++] = id;
+    }
+
+    // the smallest class with blocks of at least len bytes.
+    private int sizeClass(int len)
+    {
+        if (len <= (1 << MinimumBlockShift)) return 0;
+        return 32 - Integer.numberOfLeadingZeros(len - 1) - MinimumBlockShift;
+    }
+
+    private long allocate(int c)
+    {
+        if (this.freeBlocksCount[c] > 0) return this.freeBlocks[c][--this.freeBlocksCount[c]];
+
+        int size = 1 << (c + MinimumBlockShift);
+
+        if (this.slabs.isEmpty() || (long) this.slabOffset + size > this.slabSize)
+        {
+            // hand the tail of the current slab to the free lists before starting a new one.
+            if (! this.slabs.isEmpty())
+            {
+                int rem = this.slabSize - this.slabOffset;
+
+                for (int cClass = this.freeBlocks.length - 1; cClass >= 0; cClass--)
+                {
+                    int s = 1 << (cClass + MinimumBlockShift);
+
+                    while (rem >= s)
+                    {
+                        free(((long) (this.slabs.size() - 1) << 32) | this.slabOffset, cClass);
+                        this.slabOffset += s;
+                        rem -= s;
+                    }
+                }
+            }
+
+            this.slabs.add(ByteBuffer.allocateDirect(this.slabSize));
+            this.slabOffset = 0;
+        }
+
+        long ret = ((long) (this.slabs.size() - 1) << 32) | this.slabOffset;
+        this.slabOffset += size;
+        return ret;
+    }
+
+    private void free(long block, int c)
+    {
+        if (this.freeBlocksCount[c] == this.freeBlocks[c].length)
+        {
+            long[] l = new long[2 * this.freeBlocks[c].length];
+            System.arraycopy(this.freeBlocks[c], 0, l, 0, this.freeBlocksCount[c]);
+            this.freeBlocks[c] = l;
+        }
+
+        this.freeBlocks[c][this.freeBlocksCount[c]++] = block;
+    }
+
+    private ByteBuffer getView(long block)
+    {
+        // every caller gets its own position, so that concurrent readers do not interfere.
+        ByteBuffer b = ((ByteBuffer) this.slabs.get((int) (block >>> 32))).duplicate();
+        b.position((int) block);
+        return b;
+    }
+}
@@ -0,0 +1,225 @@
+package storageManager;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class PrefetchingStorageManager implements IPrefetchStorageManager, ISyncableStorageManager {
+    private IStorageManager pStorageManager = null;
+    private ExecutorService executor = null;
+    private int capacity = 256;
+
+    // outstanding reads, oldest first. every prefetched page is handed out once.
+    private LinkedHashMap prefetched = new LinkedHashMap();
+
+    // reads ahead hold the read lock. reads that start after a change was announced are skipped.
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile int generation = 0;
+
+    public PrefetchingStorageManager(IStorageManager sm, PropertySet ps) throws IllegalArgumentException
+    {
+        if (sm == null) throw new IllegalArgumentException("Storage manager cannot be null");
+
+        this.pStorageManager = sm;
+
+        Object var;
+        int threads = 2;
+
+        // number of I/O threads.
+        var = ps.getProperty("PrefetchThreads");
+
+        if (var != null)
+        {
+            if (! (var instanceof Integer)) throw new IllegalArgumentException("Property PrefetchThreads must be an Integer");
+            threads = ((Integer) var).intValue();
+            if (threads <= 0) throw new IllegalArgumentException("Property PrefetchThreads must be > 0");
+        }
+
+        // maximum number of pages read ahead and not used yet.
+        var = ps.getProperty("PrefetchCapacity");
+
+        if (var != null)
+        {
+            if (! (var instanceof Integer)) throw new IllegalArgumentException("Property PrefetchCapacity must be an Integer");
+            this.capacity = ((Integer) var).intValue();
+            if (this.capacity <= 0) throw new IllegalArgumentException("Property PrefetchCapacity must be > 0");
+        }
+
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "PrefetchingStorageManager");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * 在后台线程中读取这些页面，之后的读取直接使用结果
+     * @param ids
+     * @param count ids中有效的个数
+     */
+    public void prefetch(final int[] ids, final int count)
+    {
+        synchronized (this.prefetched)
+        {
+            for (int cIndex = 0; cIndex < count; cIndex++)
+            {
+                final int id = ids[cIndex];
+                final int g = this.generation;
+                if (this.prefetched.containsKey(new Integer(id))) continue;
+
+                // forget the oldest read ahead pages, they were probably not needed.
+                if (this.prefetched.size() >= this.capacity)
+                {
+                    Iterator it = this.prefetched.values().iterator();
+                    ((Future) it.next()).cancel(false);
+                    it.remove();
+                }
+
+                this.prefetched.put(new Integer(id), this.executor.submit(new Callable()
+                {
+                    public Object call()
+                    {
+                        lock.readLock().lock();
+
+                        try
+                        {
+                            if (generation != g) return null;
+                            return pStorageManager.loadByteArray(id);
+                        }
+                        finally
+                        {
+                            lock.readLock().unlock();
+                        }
+                    }
+                }));
+            }
+        }
+    }
+
+    public void flush()
+    {
+        drain();
+        this.pStorageManager.flush();
+    }
+
+    public void sync()
+    {
+        drain();
+        if (this.pStorageManager instanceof ISyncableStorageManager) ((ISyncableStorageManager) this.pStorageManager).sync();
+        else this.pStorageManager.flush();
+    }
+
+    public byte[] loadByteArray(final int id)
+    {
+        byte[] ret = take(id);
+        if (ret != null) return ret;
+
+        return this.pStorageManager.loadByteArray(id);
+    }
+
+    public ByteBuffer loadByteBuffer(final int id)
+    {
+        byte[] ret = take(id);
+        if (ret != null) return ByteBuffer.wrap(ret).asReadOnlyBuffer();
+
+        return this.pStorageManager.loadByteBuffer(id);
+    }
+
+    public byte[][] loadByteArrays(final int[] ids)
+    {
+        byte[][] ret = new byte[ids.length][];
+        int[] missing = new int[ids.length];
+        int count = 0;
+
+        for (int cIndex = 0; cIndex < ids.length; cIndex++)
+        {
+            ret[cIndex] = take(ids[cIndex]);
+            if (ret[cIndex] == null) missing[count++] = cIndex;
+        }
+
+        if (count == 0) return ret;
+
+        int[] missingIds = new int[count];
+        for (int cIndex = 0; cIndex < count; cIndex++) missingIds[cIndex] = ids[missing[cIndex]];
+
+        byte[][] data = this.pStorageManager.loadByteArrays(missingIds);
+        for (int cIndex = 0; cIndex < count; cIndex++) ret[missing[cIndex]] = data[cIndex];
+
+        return ret;
+    }
+
+    public int storeByteArray(final int id, final byte[] data)
+    {
+        // reads ahead must not overlap with changes, and must not return old data afterwards.
+        drain();
+        return this.pStorageManager.storeByteArray(id, data);
+    }
+
+    public void deleteByteArray(final int id)
+    {
+        drain();
+        this.pStorageManager.deleteByteArray(id);
+    }
+
+    public void close()
+    {
+        drain();
+        this.executor.shutdown();
+    }
+
+    /**
+     * 取出已预读的页面，读取还未完成时等待它完成
+     * @param id
+     * @return 没有预读时返回null
+     */
+    private byte[] take(int id)
+    {
+        Future f;
+
+        synchronized (this.prefetched)
+        {
+            f = (Future) this.prefetched.remove(new Integer(id));
+        }
+
+        if (f == null) return null;
+
+        try
+        {
+            return (byte[]) f.get();
+        }
+        catch (CancellationException ex)
+        {
+            return null;
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException ex)
+        {
+            // read it again in the calling thread, so that the caller sees the original exception.
+            return null;
+        }
+    }
+
+    private void drain()
+    {
+        synchronized (this.prefetched)
+        {
+            Iterator it = this.prefetched.values().iterator();
+            while (it.hasNext()) ((Future) it.next()).cancel(false);
+            this.prefetched.clear();
+        }
+
+        // wait for reads that already started, including evicted ones, and stop the ones that did not.
+        this.lock.writeLock().lock();
+        this.generation++;
+        this.lock.writeLock().unlock();
+    }
+}
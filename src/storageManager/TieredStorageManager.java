@@ -0,0 +1,326 @@
+package storageManager;
+
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.BitSet;
+
+public class TieredStorageManager implements ITieredStorageManager, ICompactableStorageManager, IPrefetchStorageManager, ISyncableStorageManager {
+    // ids per page of the memory tier bitmap.
+    private static final int ChunkSize = 8192;
+
+    private IStorageManager pStorageManager = null;
+    private int catalogID = NewPage;
+
+    // pages of the memory tier, indexed by id. every page has the same id in the disk tier, the disk copy
+    // of a memory tier page is brought up to date on flush when the page changed.
+    // batches are not passed on, memory tier pages only reach the disk tier on flush and cannot commit
+    // together with a batch of the disk tier.
+    private byte[][] memory = new byte[1024][];
+    private BitSet dirtyIds = new BitSet();
+
+    // the ids of the memory tier are kept as a bitmap in the disk tier, one page per ChunkSize ids.
+    // the catalog page lists the bitmap pages. only the bitmap pages that changed are written on flush.
+    private int[] chunkIds = new int[0];
+    private BitSet dirtyChunks = new BitSet();
+
+    public TieredStorageManager(IStorageManager sm, PropertySet ps) throws IllegalArgumentException
+    {
+        if (sm == null) throw new IllegalArgumentException("Storage manager cannot be null");
+
+        this.pStorageManager = sm;
+
+        // the catalog page of the disk tier lists the pages of the memory tier bitmap.
+        Object var = ps.getProperty("CatalogIdentifier");
+
+        if (var != null)
+        {
+            if (! (var instanceof Integer)) throw new IllegalArgumentException("Property CatalogIdentifier must be an Integer");
+            this.catalogID = ((Integer) var).intValue();
+            loadCatalog();
+        }
+        else
+        {
+            this.catalogID = this.pStorageManager.storeByteArray(NewPage, storeCatalog());
+            ps.setProperty("CatalogIdentifier", new Integer(this.catalogID));
+        }
+    }
+
+    /**
+     * 将修改过的内存层页面与位图页写入磁盘层, 然后刷新磁盘层, 两层在同一次flush中持久化
+     */
+    public void flush()
+    {
+        writeMemoryTier();
+        this.pStorageManager.flush();
+    }
+
+    public void sync()
+    {
+        writeMemoryTier();
+
+        if (this.pStorageManager instanceof ISyncableStorageManager) ((ISyncableStorageManager) this.pStorageManager).sync();
+        else this.pStorageManager.flush();
+    }
+
+    public byte[] loadByteArray(final int id)
+    {
+        byte[] data = resident(id);
+        if (data == null) return this.pStorageManager.loadByteArray(id);
+
+        byte[] ret = new byte[data.length];
+        System.arraycopy(data, 0, ret, 0, ret.length);
+        return ret;
+    }
+
+    public ByteBuffer loadByteBuffer(final int id)
+    {
+        byte[] data = resident(id);
+        if (data == null) return this.pStorageManager.loadByteBuffer(id);
+
+        // memory tier arrays are replaced, never modified, so they can be shared.
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    public byte[][] loadByteArrays(final int[] ids)
+    {
+        byte[][] ret = new byte[ids.length][];
+        int[] missing = new int[ids.length];
+        int count = 0;
+
+        for (int cIndex = 0; cIndex < ids.length; cIndex++)
+        {
+            if (resident(ids[cIndex]) == null) missing[count++] = cIndex;
+            else ret[cIndex] = loadByteArray(ids[cIndex]);
+        }
+
+        if (count == 0) return ret;
+
+        // the disk tier pages are fetched in one call.
+        int[] pages = new int[count];
+        for (int cIndex = 0; cIndex < count; cIndex++) pages[cIndex] = ids[missing[cIndex]];
+
+        byte[][] data = this.pStorageManager.loadByteArrays(pages);
+        for (int cIndex = 0; cIndex < count; cIndex++) ret[missing[cIndex]] = data[cIndex];
+
+        return ret;
+    }
+
+    /**
+     * 新页面放在磁盘层, 已有的页面留在原来的层
+     * @param id
+     * @param data
+     * @return 页号
+     */
+    public int storeByteArray(final int id, final byte[] data)
+    {
+        return storeByteArray(id, data, (resident(id) != null) ? MemoryTier : DiskTier);
+    }
+
+    /**
+     * 将页面存入指定的层. 内存层的新页面与换层的页面立即写入磁盘层, 之后的修改在flush时写入
+     * @param id
+     * @param data
+     * @param tier
+     * @return 页号
+     */
+    public int storeByteArray(final int id, final byte[] data, final int tier)
+    {
+        if (tier != MemoryTier && tier != DiskTier) throw new IllegalArgumentException("storeByteArray: unknown tier " + tier);
+
+        if (tier == DiskTier)
+        {
+            int ret = this.pStorageManager.storeByteArray(id, data);
+
+            if (resident(ret) != null)
+            {
+                // the page left the memory tier.
+                this.memory[ret] = null;
+                this.dirtyIds.clear(ret);
+                this.dirtyChunks.set(ret / ChunkSize);
+            }
+
+            return ret;
+        }
+
+        int ret = id;
+
+        if (resident(id) != null)
+        {
+            this.dirtyIds.set(id);
+        }
+        else
+        {
+            // the disk tier hands out the id and checks it, and has a copy of the page from the start.
+            ret = this.pStorageManager.storeByteArray(id, data);
+            ensureCapacity(ret + 1);
+            this.dirtyChunks.set(ret / ChunkSize);
+        }
+
+        byte[] copy = new byte[data.length];
+        System.arraycopy(data, 0, copy, 0, data.length);
+        this.memory[ret] = copy;
+
+        return ret;
+    }
+
+    public void deleteByteArray(final int id)
+    {
+        this.pStorageManager.deleteByteArray(id);
+
+        if (resident(id) != null)
+        {
+            this.memory[id] = null;
+            this.dirtyIds.clear(id);
+            this.dirtyChunks.set(id / ChunkSize);
+        }
+    }
+
+    public int relocate(final int[] ids, final int from, final int to, final int target)
+    {
+        // ids are the same in both tiers, so the disk tier can move the pages on its own.
+        return compactable().relocate(ids, from, to, target);
+    }
+
+    public void truncate(final int target)
+    {
+        compactable().truncate(target);
+    }
+
+    public void prefetch(final int[] ids, final int count)
+    {
+        if (! (this.pStorageManager instanceof IPrefetchStorageManager)) return;
+
+        int[] pages = new int[count];
+        int cCount = 0;
+
+        for (int cIndex = 0; cIndex < count; cIndex++)
+        {
+            if (resident(ids[cIndex]) == null) pages[cCount++] = ids[cIndex];
+        }
+
+        if (cCount > 0) ((IPrefetchStorageManager) this.pStorageManager).prefetch(pages, cCount);
+    }
+
+    private ICompactableStorageManager compactable()
+    {
+        if (! (this.pStorageManager instanceof ICompactableStorageManager)) throw new IllegalStateException("compact: the storage manager cannot relocate pages.");
+        return (ICompactableStorageManager) this.pStorageManager;
+    }
+
+    private byte[] resident(final int id)
+    {
+        byte[][] m = this.memory;
+        return (id >= 0 && id < m.length) ? m[id] : null;
+    }
+
+    private void ensureCapacity(int size)
+    {
+        if (size <= this.memory.length) return;
+
+        byte[][] m = new byte[Math.max(size, 2 * this.memory.length)][];
+        System.arraycopy(this.memory, 0, m, 0, this.memory.length);
+        this.memory = m;
+    }
+
+    /**
+     * 写出修改过的内存层页面, 以及内容有变化的位图页. 新增位图页时重写目录页
+     */
+    private void writeMemoryTier()
+    {
+        for (int id = this.dirtyIds.nextSetBit(0); id >= 0; id = this.dirtyIds.nextSetBit(id + 1))
+        {
+            this.pStorageManager.storeByteArray(id, this.memory[id]);
+        }
+
+        this.dirtyIds.clear();
+
+        if (this.dirtyChunks.isEmpty()) return;
+
+        boolean bGrown = false;
+
+        for (int chunk = this.dirtyChunks.nextSetBit(0); chunk >= 0; chunk = this.dirtyChunks.nextSetBit(chunk + 1))
+        {
+            if (chunk >= this.chunkIds.length)
+            {
+                int[] c = new int[chunk + 1];
+                System.arraycopy(this.chunkIds, 0, c, 0, this.chunkIds.length);
+                for (int cIndex = this.chunkIds.length; cIndex < c.length; cIndex++) c[cIndex] = NewPage;
+                this.chunkIds = c;
+                bGrown = true;
+            }
+
+            if (this.chunkIds[chunk] == NewPage) bGrown = true;
+            this.chunkIds[chunk] = this.pStorageManager.storeByteArray(this.chunkIds[chunk], storeChunk(chunk));
+        }
+
+        this.dirtyChunks.clear();
+
+        if (bGrown) this.pStorageManager.storeByteArray(this.catalogID, storeCatalog());
+    }
+
+    // catalog layout: the number of bitmap pages, then their ids. NewPage for bitmap pages never written.
+    private byte[] storeCatalog()
+    {
+        ByteBuffer b = ByteBuffer.allocate(4 + 4 * this.chunkIds.length);
+        b.putInt(this.chunkIds.length);
+        for (int cIndex = 0; cIndex < this.chunkIds.length; cIndex++) b.putInt(this.chunkIds[cIndex]);
+        return b.array();
+    }
+
+    private byte[] storeChunk(int chunk)
+    {
+        byte[] ret = new byte[ChunkSize / 8];
+        int first = chunk * ChunkSize;
+        int last = Math.min(first + ChunkSize, this.memory.length);
+
+        for (int id = first; id < last; id++)
+        {
+            if (this.memory[id] != null) ret[(id - first) >> 3] |= (byte) (1 << ((id - first) & 7));
+        }
+
+        return ret;
+    }
+
+    private void loadCatalog()
+    {
+        ByteBuffer b = ByteBuffer.wrap(this.pStorageManager.loadByteArray(this.catalogID));
+
+        try
+        {
+            int count = b.getInt();
+            if (count < 0) throw new IllegalStateException("Corrupted catalog.");
+
+            this.chunkIds = new int[count];
+            for (int cIndex = 0; cIndex < count; cIndex++) this.chunkIds[cIndex] = b.getInt();
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IllegalStateException("Corrupted catalog.");
+        }
+
+        BitSet ids = new BitSet();
+
+        for (int chunk = 0; chunk < this.chunkIds.length; chunk++)
+        {
+            if (this.chunkIds[chunk] == NewPage) continue;
+
+            byte[] bits = this.pStorageManager.loadByteArray(this.chunkIds[chunk]);
+            if (bits.length != ChunkSize / 8) throw new IllegalStateException("Corrupted catalog.");
+
+            for (int cBit = 0; cBit < ChunkSize; cBit++)
+            {
+                if ((bits[cBit >> 3] & (1 << (cBit & 7))) != 0) ids.set(chunk * ChunkSize + cBit);
+            }
+        }
+
+        // the memory tier is read in one call.
+        int[] pages = new int[ids.cardinality()];
+        int cIndex = 0;
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) pages[cIndex++] = id;
+
+        byte[][] data = this.pStorageManager.loadByteArrays(pages);
+
+        if (pages.length > 0) ensureCapacity(pages[pages.length - 1] + 1);
+        for (cIndex = 0; cIndex < pages.length; cIndex++) this.memory[pages[cIndex]] = data[cIndex];
+    }
+}
@@ -0,0 +1,600 @@
+package storageManager;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+public class WriteAheadLogStorageManager implements IAtomicBatchStorageManager {
+    public static final int SyncAlways = 1;
+    public static final int SyncGroup = 2;
+    public static final int SyncNever = 3;
+
+    private static final int LogMagic = 0x5357414c;
+    private static final int HeaderSize = 8;
+
+    private static final byte LogAllocate = 1;
+    private static final byte LogStore = 2;
+    private static final byte LogDelete = 3;
+
+    private IStorageManager pStorageManager = null;
+    private RandomAccessFile logFile = null;
+    private FileChannel logChannel = null;
+    private long logEnd = HeaderSize;
+
+    private int syncMode = SyncGroup;
+    private int groupCommitSize = 32;
+    private long groupCommitInterval = 10;
+    private int unsyncedCommits = 0;
+    private long lastSync = 0;
+    private Thread syncThread = null;
+    private boolean bClosed = false;
+
+    // page holding the sequence number of the last batch contained in the underlying storage.
+    private int metaID = NewPage;
+    private long nextLSN = 1;
+
+    private boolean bInBatch = false;
+    private ByteArrayOutputStream allocations = new ByteArrayOutputStream();
+    private ArrayList allocatedIds = new ArrayList();
+    private LinkedHashMap pending = new LinkedHashMap();
+
+    public WriteAheadLogStorageManager(IStorageManager sm, PropertySet ps)
+            throws SecurityException, NullPointerException, IOException, FileNotFoundException, IllegalArgumentException
+    {
+        if (sm == null) throw new IllegalArgumentException("Storage manager cannot be null");
+
+        this.pStorageManager = sm;
+
+        Object var;
+
+        // Open/Create flag.
+        boolean bOverwrite = false;
+        var = ps.getProperty("Overwrite");
+
+        if (var != null)
+        {
+            if (! (var instanceof Boolean)) throw new IllegalArgumentException("Property Overwrite must be a Boolean");
+            bOverwrite = ((Boolean) var).booleanValue();
+        }
+
+        // log filename, defaults to the storage filename.
+        File f;
+        var = ps.getProperty("LogFileName");
+
+        if (var != null)
+        {
+            if (! (var instanceof String)) throw new IllegalArgumentException("Property LogFileName must be a String");
+            f = new File((String) var);
+        }
+        else
+        {
+            var = ps.getProperty("FileName");
+            if (! (var instanceof String)) throw new IllegalArgumentException("Property LogFileName was not specified.");
+            f = new File((String) var + ".wal");
+        }
+
+        // sync mode.
+        var = ps.getProperty("LogSync");
+
+        if (var != null)
+        {
+            if (! (var instanceof Integer)) throw new IllegalArgumentException("Property LogSync must be an Integer");
+            int i = ((Integer) var).intValue();
+            if (i != SyncAlways && i != SyncGroup && i != SyncNever)
+                throw new IllegalArgumentException("Property LogSync not a valid sync mode");
+            this.syncMode = i;
+        }
+
+        // group commit.
+        var = ps.getProperty("GroupCommitSize");
+
+        if (var != null)
+        {
+            if (! (var instanceof Integer)) throw new IllegalArgumentException("Property GroupCommitSize must be an Integer");
+            this.groupCommitSize = ((Integer) var).intValue();
+        }
+
+        var = ps.getProperty("GroupCommitInterval");
+
+        if (var != null)
+        {
+            if (! (var instanceof Integer)) throw new IllegalArgumentException("Property GroupCommitInterval must be an Integer");
+            this.groupCommitInterval = ((Integer) var).intValue();
+        }
+
+        if (bOverwrite && f.exists()) f.delete();
+
+        this.logFile = new RandomAccessFile(f, "rw");
+        this.logChannel = this.logFile.getChannel();
+
+        if (this.logFile.length() >= HeaderSize)
+        {
+            if (this.logFile.readInt() != LogMagic) throw new IllegalStateException("Corrupted log file.");
+            this.metaID = this.logFile.readInt();
+
+            recover();
+        }
+
+        checkpoint();
+
+        if (this.syncMode == SyncGroup && this.groupCommitInterval > 0) startSyncThread();
+    }
+
+    public void beginBatch()
+    {
+        if (this.bInBatch) throw new IllegalStateException("beginBatch: a batch is already open.");
+
+        this.bInBatch = true;
+        this.allocations.reset();
+        this.allocatedIds.clear();
+        this.pending.clear();
+    }
+
+    /**
+     * 放弃当前批次. 新页面已经在底层存储中分配, 所以把分配和对应的删除作为一组写入日志并立即删除这些页面,
+     * 这样重放时底层存储分配的页号与之前一致
+     */
+    public void abortBatch()
+    {
+        if (! this.bInBatch) return;
+        this.bInBatch = false;
+        this.pending.clear();
+
+        if (this.allocatedIds.isEmpty()) return;
+
+        try
+        {
+            ByteArrayOutputStream bs = new ByteArrayOutputStream();
+            DataOutputStream ds = new DataOutputStream(bs);
+
+            this.allocations.writeTo(ds);
+
+            for (int cIndex = 0; cIndex < this.allocatedIds.size(); cIndex++)
+            {
+                ds.writeByte(LogDelete);
+                ds.writeInt(((Integer) this.allocatedIds.get(cIndex)).intValue());
+            }
+
+            ds.flush();
+            appendGroup(this.nextLSN++, bs.toByteArray());
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted log file.");
+        }
+
+        for (int cIndex = 0; cIndex < this.allocatedIds.size(); cIndex++)
+        {
+            this.pStorageManager.deleteByteArray(((Integer) this.allocatedIds.get(cIndex)).intValue());
+        }
+
+        this.allocations.reset();
+        this.allocatedIds.clear();
+    }
+
+    /**
+     * 将当前批次的所有修改作为一组写入日志，按同步模式刷盘后再应用到底层存储
+     */
+    public void commitBatch()
+    {
+        if (! this.bInBatch) return;
+        this.bInBatch = false;
+
+        if (this.allocations.size() == 0 && this.pending.isEmpty()) return;
+
+        try
+        {
+            ByteArrayOutputStream bs = new ByteArrayOutputStream();
+            DataOutputStream ds = new DataOutputStream(bs);
+
+            // allocations first, they already reached the storage manager in this order.
+            this.allocations.writeTo(ds);
+
+            Iterator it = this.pending.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry me = (Map.Entry) it.next();
+                int id = ((Integer) me.getKey()).intValue();
+                byte[] data = (byte[]) me.getValue();
+
+                if (data == null)
+                {
+                    ds.writeByte(LogDelete);
+                    ds.writeInt(id);
+                }
+                else
+                {
+                    ds.writeByte(LogStore);
+                    ds.writeInt(id);
+                    ds.writeInt(data.length);
+                    ds.write(data);
+                }
+            }
+
+            ds.flush();
+            appendGroup(this.nextLSN++, bs.toByteArray());
+
+            if (this.syncMode == SyncAlways)
+            {
+                sync();
+            }
+            else if (this.syncMode == SyncGroup)
+            {
+                synchronized (this)
+                {
+                    this.unsyncedCommits++;
+                    if (this.unsyncedCommits >= this.groupCommitSize || System.currentTimeMillis() - this.lastSync >= this.groupCommitInterval) sync();
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted log file.");
+        }
+
+        Iterator it = this.pending.entrySet().iterator();
+        InvalidPageException error = null;
+
+        // let the storage manager combine the writes of the batch as well.
+        if (this.pStorageManager instanceof IBatchStorageManager) ((IBatchStorageManager) this.pStorageManager).beginBatch();
+
+        while (it.hasNext())
+        {
+            Map.Entry me = (Map.Entry) it.next();
+
+            // replay skips invalid pages as well, so keep applying the rest of the batch.
+            try
+            {
+                apply(LogStore, ((Integer) me.getKey()).intValue(), (byte[]) me.getValue());
+            }
+            catch (InvalidPageException ex)
+            {
+                error = ex;
+            }
+        }
+
+        if (this.pStorageManager instanceof IBatchStorageManager) ((IBatchStorageManager) this.pStorageManager).commitBatch();
+
+        this.allocations.reset();
+        this.allocatedIds.clear();
+        this.pending.clear();
+
+        if (error != null) throw error;
+    }
+
+    public void flush()
+    {
+        commitBatch();
+
+        try
+        {
+            checkpoint();
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted log file.");
+        }
+    }
+
+    public byte[] loadByteArray(final int id)
+    {
+        if (this.bInBatch && this.pending.containsKey(new Integer(id)))
+        {
+            byte[] data = (byte[]) this.pending.get(new Integer(id));
+            if (data == null) throw new InvalidPageException(id);
+
+            byte[] ret = new byte[data.length];
+            System.arraycopy(data, 0, ret, 0, data.length);
+            return ret;
+        }
+
+        return this.pStorageManager.loadByteArray(id);
+    }
+
+    public ByteBuffer loadByteBuffer(final int id)
+    {
+        if (this.bInBatch && this.pending.containsKey(new Integer(id)))
+        {
+            byte[] data = (byte[]) this.pending.get(new Integer(id));
+            if (data == null) throw new InvalidPageException(id);
+
+            return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        }
+
+        return this.pStorageManager.loadByteBuffer(id);
+    }
+
+    public byte[][] loadByteArrays(final int[] ids)
+    {
+        if (! this.bInBatch || this.pending.isEmpty()) return this.pStorageManager.loadByteArrays(ids);
+
+        byte[][] ret = new byte[ids.length][];
+        for (int cIndex = 0; cIndex < ids.length; cIndex++) ret[cIndex] = loadByteArray(ids[cIndex]);
+        return ret;
+    }
+
+    public int storeByteArray(final int id, final byte[] data)
+    {
+        if (! this.bInBatch)
+        {
+            beginBatch();
+            int ret = storeByteArray(id, data);
+            commitBatch();
+            return ret;
+        }
+
+        if (id == NewPage)
+        {
+            // the identifier is needed right away, so new pages go to the storage manager immediately.
+            // they use space that no committed page refers to.
+            int ret = this.pStorageManager.storeByteArray(NewPage, data);
+            writeRecord(this.allocations, LogAllocate, ret, data);
+            this.allocatedIds.add(new Integer(ret));
+            return ret;
+        }
+
+        if (this.pending.containsKey(new Integer(id)) && this.pending.get(new Integer(id)) == null) throw new InvalidPageException(id);
+
+        byte[] copy = new byte[data.length];
+        System.arraycopy(data, 0, copy, 0, data.length);
+        this.pending.put(new Integer(id), copy);
+
+        return id;
+    }
+
+    public void deleteByteArray(final int id)
+    {
+        if (! this.bInBatch)
+        {
+            beginBatch();
+            deleteByteArray(id);
+            commitBatch();
+            return;
+        }
+
+        if (this.pending.containsKey(new Integer(id)) && this.pending.get(new Integer(id)) == null) throw new InvalidPageException(id);
+
+        this.pending.put(new Integer(id), null);
+    }
+
+    public void close()
+    {
+        flush();
+
+        synchronized (this)
+        {
+            this.bClosed = true;
+            notifyAll();
+        }
+
+        try
+        {
+            if (this.syncThread != null) this.syncThread.join();
+            this.logFile.close();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted log file.");
+        }
+    }
+
+    private void apply(byte type, int id, byte[] data)
+    {
+        if (type == LogAllocate)
+        {
+            int ret = this.pStorageManager.storeByteArray(NewPage, data);
+            if (ret != id) throw new IllegalStateException("Log replay allocated page " + ret + " instead of " + id + ".");
+        }
+        else if (data == null)
+        {
+            this.pStorageManager.deleteByteArray(id);
+        }
+        else
+        {
+            this.pStorageManager.storeByteArray(id, data);
+        }
+    }
+
+    private void writeRecord(ByteArrayOutputStream bs, byte type, int id, byte[] data)
+    {
+        try
+        {
+            DataOutputStream ds = new DataOutputStream(bs);
+            ds.writeByte(type);
+            ds.writeInt(id);
+            ds.writeInt(data.length);
+            ds.write(data);
+            ds.flush();
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Corrupted log file.");
+        }
+    }
+
+    private void appendGroup(long lsn, byte[] body) throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate(4 + 8 + body.length + 4);
+        b.putInt(body.length);
+        b.putLong(lsn);
+        b.put(body);
+        b.putInt(checksum(lsn, body));
+        b.flip();
+
+        while (b.hasRemaining()) this.logEnd += this.logChannel.write(b, this.logEnd);
+    }
+
+    private int checksum(long lsn, byte[] body)
+    {
+        CRC32 crc = new CRC32();
+        for (int cShift = 56; cShift >= 0; cShift -= 8) crc.update((int) (lsn >>> cShift));
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private synchronized void sync() throws IOException
+    {
+        this.logChannel.force(false);
+        this.unsyncedCommits = 0;
+        this.lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * 分组提交时, 后台线程在间隔结束后同步最后一组提交, 即使之后不再有新的提交
+     */
+    private void startSyncThread()
+    {
+        this.syncThread = new Thread("WriteAheadLogStorageManager sync")
+        {
+            public void run()
+            {
+                synchronized (WriteAheadLogStorageManager.this)
+                {
+                    try
+                    {
+                        while (! bClosed)
+                        {
+                            long wait = groupCommitInterval;
+
+                            if (unsyncedCommits > 0)
+                            {
+                                wait = lastSync + groupCommitInterval - System.currentTimeMillis();
+
+                                if (wait <= 0)
+                                {
+                                    sync();
+                                    wait = groupCommitInterval;
+                                }
+                            }
+
+                            WriteAheadLogStorageManager.this.wait(wait);
+                        }
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    catch (IOException ex)
+                    {
+                        // commits keep syncing on their own.
+                        System.err.println(ex);
+                    }
+                }
+            }
+        };
+        this.syncThread.setDaemon(true);
+        this.syncThread.start();
+    }
+
+    /**
+     * 重放日志中校验通过且尚未包含在底层存储中的批次，截掉末尾不完整的部分
+     * @throws IOException
+     */
+    private void recover() throws IOException
+    {
+        long applied;
+
+        try
+        {
+            DataInputStream ds = new DataInputStream(new ByteArrayInputStream(this.pStorageManager.loadByteArray(this.metaID)));
+            applied = ds.readLong();
+        }
+        catch (InvalidPageException ex)
+        {
+            // the last checkpoint reached the storage manager but not the log header; everything logged is applied.
+            applied = Long.MAX_VALUE;
+            this.metaID = NewPage;
+        }
+
+        this.logChannel.position(HeaderSize);
+        DataInputStream ds = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.logChannel)));
+        long position = HeaderSize;
+
+        try
+        {
+            while (true)
+            {
+                int length = ds.readInt();
+                long lsn = ds.readLong();
+
+                // the length of a torn batch can be garbage, it has to fit in what is left of the log.
+                if (length < 0 || length > this.logFile.length() - position - 16) break;
+
+                byte[] body = new byte[length];
+                ds.readFully(body);
+                if (ds.readInt() != checksum(lsn, body)) break;
+
+                if (lsn > applied)
+                {
+                    DataInputStream records = new DataInputStream(new ByteArrayInputStream(body));
+
+                    while (records.available() > 0)
+                    {
+                        byte type = records.readByte();
+                        int id = records.readInt();
+                        byte[] data = null;
+
+                        if (type != LogDelete)
+                        {
+                            data = new byte[records.readInt()];
+                            records.readFully(data);
+                        }
+
+                        try
+                        {
+                            apply(type, id, data);
+                        }
+                        catch (InvalidPageException ex)
+                        {
+                            if (type == LogAllocate) throw ex;
+                        }
+                    }
+                }
+
+                this.nextLSN = Math.max(this.nextLSN, lsn + 1);
+                position += 4 + 8 + length + 4;
+            }
+        }
+        catch (EOFException ex)
+        {
+            // a batch that was cut short. it never committed.
+        }
+
+        this.logEnd = position;
+    }
+
+    /**
+     * 记录底层存储已包含的最后一个批次，刷新底层存储后清空日志
+     * @throws IOException
+     */
+    private void checkpoint() throws IOException
+    {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        DataOutputStream ds = new DataOutputStream(bs);
+        ds.writeLong(this.nextLSN - 1);
+        ds.flush();
+
+        // never overwrite the current meta page in place, it has to switch together with the storage manager's flush.
+        int oldMetaID = this.metaID;
+        this.metaID = this.pStorageManager.storeByteArray(NewPage, bs.toByteArray());
+        if (oldMetaID != NewPage) this.pStorageManager.deleteByteArray(oldMetaID);
+
+        // the log is cleared below, everything it protects has to be on the disk first.
+        if (this.pStorageManager instanceof ISyncableStorageManager) ((ISyncableStorageManager) this.pStorageManager).sync();
+        else this.pStorageManager.flush();
+
+        this.logFile.setLength(0);
+        this.logFile.seek(0);
+        this.logFile.writeInt(LogMagic);
+        this.logFile.writeInt(this.metaID);
+        this.logEnd = HeaderSize;
+        sync();
+    }
+}